@@ -0,0 +1,67 @@
+# Long-lived CGI worker, started by server.CGIPool.
+#
+# Frames are a 4-byte big-endian signed length followed by that many bytes.
+# The server sends one frame holding the script path. The worker runs the
+# script and answers with data frames of its output, then a terminator:
+# length 0 when the script finished, length -1 when it failed.
+import io
+import runpy
+import struct
+import sys
+import traceback
+
+CHUNK = 8192
+
+requests = sys.stdin.buffer
+replies = sys.stdout.buffer
+
+
+class FrameWriter(io.RawIOBase):
+    """Script output, sent to the server in frames as it is produced."""
+
+    def writable(self):
+        return True
+
+    def write(self, b):
+        if b:
+            replies.write(struct.pack('>i', len(b)))
+            replies.write(b)
+            replies.flush()  # stream, do not wait for the end of the script
+        return len(b)
+
+
+def read_frame():
+    header = requests.read(4)
+    if len(header) < 4:
+        return None
+    (n,) = struct.unpack('>i', header)
+    return requests.read(n)
+
+
+def main():
+    while True:
+        path = read_frame()
+        if path is None:
+            return  # server closed the pipe
+        out = io.TextIOWrapper(io.BufferedWriter(FrameWriter(), CHUNK), write_through=False)
+        status = 0
+        sys.stdout = out
+        try:
+            runpy.run_path(path.decode('utf-8'), run_name='__main__')
+        except SystemExit as e:
+            status = 0 if e.code in (None, 0) else -1
+        except BaseException:
+            traceback.print_exc(file=sys.stderr)
+            status = -1
+        finally:
+            sys.stdout = sys.__stdout__
+            try:
+                out.flush()
+            except Exception:
+                status = -1
+        replies.write(struct.pack('>i', status))
+        replies.flush()
+
+
+if __name__ == '__main__':
+    main()
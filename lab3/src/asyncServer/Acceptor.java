@@ -7,11 +7,19 @@ import java.nio.channels.SocketChannel;
 import utility.Debug;
 
 public class Acceptor implements IAcceptHandler {
-	private TimeoutThread timeoutThread;
     private ISocketReadWriteHandlerFactory srwf;
-    public Acceptor(ISocketReadWriteHandlerFactory srwf, TimeoutThread timeoutThread) {
+    private Dispatcher[] subReactors;
+    private int next = 0;
+
+    // serve connections on the dispatcher that accepts them
+    public Acceptor(ISocketReadWriteHandlerFactory srwf, Dispatcher dispatcher) {
+        this(srwf, new Dispatcher[] { dispatcher });
+    }
+
+    // hand accepted connections to the sub-reactors round-robin
+    public Acceptor(ISocketReadWriteHandlerFactory srwf, Dispatcher[] subReactors) {
         this.srwf = srwf;
-        this.timeoutThread = timeoutThread;
+        this.subReactors = subReactors;
     }
 
     public void handleException() {
@@ -23,7 +31,9 @@ public class Acceptor implements IAcceptHandler {
 
         // extract the ready connection
         SocketChannel client = server.accept();
-        Debug.DEBUG("handleAccept: Accepted connection from " + client);
+        if (Debug.on(3)) {
+            Debug.DEBUG("handleAccept: Accepted connection from " + client);
+        }
 
         // configure the connection to be non-blocking
         client.configureBlocking(false);
@@ -35,17 +45,9 @@ public class Acceptor implements IAcceptHandler {
          */
 
         IReadWriteHandler rwH = srwf.createHandler();
-        int ops = rwH.getInitOps();
-
-        SelectionKey clientKey = client.register(key.selector(), ops);
-        clientKey.attach(rwH);
-        
-        // add time out handler here
-        if(this.timeoutThread != null){
-        	this.timeoutThread.addKey(clientKey);
-            rwH.setTimeoutthread(this.timeoutThread);
-        }
-        
+        Dispatcher d = subReactors[next];
+        next = (next + 1) % subReactors.length;
+        d.register(client, rwH);
         
     } // end of handleAccept
 
@@ -2,23 +2,32 @@ package asyncServer;
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 // for Set and Iterator
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import utility.Debug;
 
 public class Dispatcher implements Runnable {
-	private TimeoutThread timeoutThread;
     private Selector selector;
-    private volatile List<SelectionKey> skList = new ArrayList<SelectionKey>();
+    private volatile Thread thread; // the thread running this dispatcher
+    private volatile boolean running = true;
+    // idle connection timeouts, expired on this thread between selects
+    private final TimingWheel timer = new TimingWheel(100, 512);
+    private final long idleTimeout; // in milliseconds, 0: connections never time out
+    private final List<SelectionKey> expired = new ArrayList<SelectionKey>();
     
-    public Dispatcher(TimeoutThread timeoutThread) {
+    // work handed over by other threads, run on this thread after select
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+    
+    // idleTimeout is 0 for a dispatcher that only accepts
+    public Dispatcher(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
         // create selector
-    	this.timeoutThread = timeoutThread;
-    	this.timeoutThread.setRemovedList(skList);
         try {
             selector = Selector.open();
         } catch (IOException ex) {
@@ -31,6 +40,75 @@ public class Dispatcher implements Runnable {
     public Selector selector()  {
         return selector;
     }
+
+    /**
+     * Run task on the dispatcher thread. Safe to call from any thread; the
+     * selector is woken up so the task does not wait for the next event.
+     */
+    public void invokeLater(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Hand an accepted connection to this dispatcher. Registering from the
+     * acceptor thread directly could block behind this thread's select(), so
+     * a registration from another thread is queued and done here.
+     */
+    public void register(final SocketChannel client, final IReadWriteHandler rwH) {
+        if (Thread.currentThread() == thread) {
+            registerNow(client, rwH);
+            return;
+        }
+        invokeLater(new Runnable() {
+            public void run() {
+                registerNow(client, rwH);
+            }
+        });
+    }
+
+    private void registerNow(SocketChannel client, IReadWriteHandler rwH) {
+        try {
+            SelectionKey clientKey = client.register(selector, rwH.getInitOps());
+            clientKey.attach(rwH);
+            rwH.setDispatcher(this, clientKey);
+            // add time out handler here
+            rwH.setIdleTimeout(scheduleIdleTimeout(clientKey));
+        } catch (IOException ex) {
+            if (Debug.on(3)) {
+                Debug.DEBUG("Cannot register " + client, 3);
+            }
+            try {
+                client.close();
+            } catch (IOException cex) {
+            }
+        }
+    }
+
+    /**
+     * Close the connection of key if it stays idle for the idle timeout.
+     * Must be called on the dispatcher thread; returns null if connections
+     * never time out.
+     */
+    public TimingWheel.Timeout scheduleIdleTimeout(SelectionKey key) {
+        if (idleTimeout <= 0) {
+            return null;
+        }
+        return timer.schedule(key, idleTimeout);
+    }
+
+    /**
+     * Close every connection and the selector, then end run(). Connections
+     * should be drained before; this drops whatever is left.
+     */
+    public void shutdown() {
+        invokeLater(new Runnable() {
+            public void run() {
+                running = false;
+            }
+        });
+    }
+
     /*
     public SelectionKey registerNewSelection(SelectableChannel channel,
             IChannelHandler handler, int ops) throws ClosedChannelException {
@@ -53,27 +131,39 @@ public class Dispatcher implements Runnable {
 */
     
     public void run() {
-    	
-        while (true) {
+    	thread = Thread.currentThread();
+        while (running) {
             Debug.DEBUG("Enter selection");
             try {
-                // check to see if any events
-                selector.select();        
+                // check to see if any events, or until the next timeout
+                selector.select(timer.millisToNextTimeout(System.currentTimeMillis()));
                 Debug.DEBUG("Exit selection");
             } catch (IOException ex) {
                 ex.printStackTrace();
                 break;
             }
 
-            // try to remove timeout keys
-            Iterator<SelectionKey> it = skList.iterator();
-            while(it.hasNext()){
-            	SelectionKey sk = (SelectionKey) it.next();
-            	it.remove();
-            	sk.cancel();
-            	Debug.DEBUG("remove key!");
+            // registrations and other work from other threads
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) {
+                task.run();
             }
-            
+
+            // close connections that stayed idle too long
+            timer.expire(System.currentTimeMillis(), expired);
+            for (SelectionKey sk : expired) {
+                if (!sk.isValid()) {
+                    continue; // already closed by its handler
+                }
+                ((IReadWriteHandler) sk.attachment()).cancel();
+                sk.cancel();
+                try {
+                    sk.channel().close();
+                } catch (IOException ex) {
+                }
+                Debug.DEBUG("remove key!");
+            }
+            expired.clear();
             
             // readKeys is a set of ready events
             Set<SelectionKey> readyKeys = selector.selectedKeys();
@@ -86,6 +176,9 @@ public class Dispatcher implements Runnable {
 
                 SelectionKey key = (SelectionKey) iterator.next();
                 iterator.remove();
+                if (!key.isValid()) {
+                    continue; // timed out above
+                }
               
                 try {
                     if (key.isAcceptable()) { // a new connection is ready to be
@@ -102,12 +195,18 @@ public class Dispatcher implements Runnable {
                             rwH.handleRead(key);
                         } // end of if isReadable
 
-                        if (key.isWritable()) {
+                        // the read handler may have closed the connection
+                        if (key.isValid() && key.isWritable()) {
                             rwH.handleWrite(key);
                         } // end of if isWritable
                     } // end of readwrite
                 } catch (IOException ex) {
-                    Debug.DEBUG("Exception when handling key " + key);
+                    if (Debug.on(3)) {
+                        Debug.DEBUG("Exception when handling key " + key, 3);
+                    }
+                    if (key.attachment() instanceof IReadWriteHandler) {
+                        ((IReadWriteHandler) key.attachment()).cancel();
+                    }
                     key.cancel();
                     try {
                         key.channel().close();
@@ -118,6 +217,20 @@ public class Dispatcher implements Runnable {
 
             } // end of while (iterator.hasNext()) {
 
-        } // end of while (true)
+        } // end of while (running)
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof IReadWriteHandler) {
+                ((IReadWriteHandler) key.attachment()).cancel();
+            }
+            try {
+                key.channel().close();
+            } catch (IOException ex) {
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+        }
     } // end of run
 }
\ No newline at end of file
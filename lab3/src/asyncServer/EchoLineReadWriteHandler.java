@@ -1,26 +1,37 @@
 package asyncServer;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
+import server.ConnectionTracker;
 import server.RequestHandler;
+import utility.BufferPool;
 import utility.Debug;
 import utility.HTTPRequest;
+import utility.HTTPRequestParser;
 import utility.HTTPResponse;
+import utility.ResponseWriter;
 
-public class EchoLineReadWriteHandler implements IReadWriteHandler {
+public class EchoLineReadWriteHandler implements IReadWriteHandler, ConnectionTracker.Drainable {
 
     private ByteBuffer inBuffer;
-    private ByteBuffer outBuffer;
+    private ResponseWriter responseWriter; // header buffer plus zero-copy file body
 
     private boolean requestComplete;
     private boolean responseReady;
     private boolean responseSent;
     private boolean channelClosed;
-    private volatile boolean channelReadyToClose; // this variable may be modified by handler and timeout thread concurrently
-    private StringBuffer request;
-	private ITimeoutThread ITimeoutThread = null;
+    private volatile boolean channelReadyToClose; // set by the handler, read on the dispatcher thread
+    private boolean keepAlive; // connection stays open after the current response
+    private boolean inputClosed; // client shut down its side, answer what is buffered and close
+    private int served; // responses sent on this connection
+    private HTTPRequestParser parser;
+    private TimingWheel.Timeout idleTimeout; // armed while waiting for a request
+    private Dispatcher dispatcher;
+    private SelectionKey key; // of this connection on the dispatcher's selector
+    private final WorkerPool workers; // null: generate responses on the dispatcher thread
 
     // private enum State {
     // READ_REQUEST, REQUEST_COMPLETE, GENERATING_RESPONSE, RESPONSE_READY,
@@ -29,8 +40,11 @@ public class EchoLineReadWriteHandler implements IReadWriteHandler {
     // private State state;
 	
     public EchoLineReadWriteHandler() {
-        inBuffer = ByteBuffer.allocate(4096);
-        outBuffer = ByteBuffer.allocate(4096 * 1024);
+        this(null);
+    }
+
+    public EchoLineReadWriteHandler(WorkerPool workers) {
+        this.workers = workers;
 
         // initial state
         requestComplete = false;
@@ -39,7 +53,7 @@ public class EchoLineReadWriteHandler implements IReadWriteHandler {
         channelReadyToClose = false;
         channelClosed = false;
 
-        request = new StringBuffer(4096);
+        parser = new HTTPRequestParser();
     }
 
     public int getInitOps() {
@@ -83,8 +97,17 @@ public class EchoLineReadWriteHandler implements IReadWriteHandler {
          * dispatcher.deregisterSelection(sk); channelClosed = true; return; }
          */
 
+        if (responseReady && responseSent) {
+            if (keepAlive) {
+                // persistent connection, move on to the next request
+                startNextRequest(key);
+            } else {
+                channelReadyToClose = true;
+            }
+        }
+
         int nextState = key.interestOps();
-        if (requestComplete) {
+        if (requestComplete || inputClosed) {
             nextState = nextState & ~SelectionKey.OP_READ;
             Debug.DEBUG("New state: -Read since request parsed complete");
         } else {
@@ -92,16 +115,12 @@ public class EchoLineReadWriteHandler implements IReadWriteHandler {
             Debug.DEBUG("New state: +Read to continue to read");
         }
 
-        if (responseReady) {
-        	
-            if (!responseSent) {
-                nextState = nextState | SelectionKey.OP_WRITE;
-                Debug.DEBUG("New state: +Write since response ready but not done sent");
-            } else {
-                nextState = nextState & ~SelectionKey.OP_WRITE;
-                channelReadyToClose = true;
-                Debug.DEBUG("New state: -Write since response ready and sent");
-            }
+        if (responseReady && !responseSent) {
+            nextState = nextState | SelectionKey.OP_WRITE;
+            Debug.DEBUG("New state: +Write since response ready but not done sent");
+        } else {
+            nextState = nextState & ~SelectionKey.OP_WRITE;
+            Debug.DEBUG("New state: -Write since no response to send");
         }
 
         key.interestOps(nextState);
@@ -112,14 +131,7 @@ public class EchoLineReadWriteHandler implements IReadWriteHandler {
         	((SocketChannel)key.channel()).socket().close();
         	key.channel().close();
         	key.cancel();
-                outBuffer = null;
-                inBuffer = null;
-                request = null; 	
-                
-        	channelClosed = true;
-        	// may remove multiple times, but it doesn't matter
-        	if(this.ITimeoutThread != null)
-        		this.ITimeoutThread.removeKey(key);
+        	release();
         	return ;
         }
     }
@@ -128,14 +140,21 @@ public class EchoLineReadWriteHandler implements IReadWriteHandler {
 
         // process data
         SocketChannel client = (SocketChannel) key.channel();
-        Debug.DEBUG("handleWrite: Write data to connection " + client
-                + "; from buffer " + outBuffer);
-        int writeBytes = client.write(outBuffer);
-        Debug.DEBUG("handleWrite: write " + writeBytes + " bytes; after write " + outBuffer);
+        if (Debug.on(3)) {
+            Debug.DEBUG("handleWrite: Write data to connection " + client);
+        }
+        boolean writeDone = responseWriter.writeTo(client);
+        if (Debug.on(3)) {
+            Debug.DEBUG("handleWrite: response " + (writeDone ? "complete" : "partially written"));
+        }
 
-        if (responseReady && (outBuffer.remaining() == 0)) {
+        if (responseReady && writeDone) {
             responseSent = true;
-            client.socket().shutdownOutput(); // close output stream
+            responseWriter = null;
+            served++;
+            if (!keepAlive) {
+                client.socket().shutdownOutput(); // close output stream
+            }
             Debug.DEBUG("handleWrite: responseSent");
         }
 
@@ -150,65 +169,192 @@ public class EchoLineReadWriteHandler implements IReadWriteHandler {
         Debug.DEBUG("processInBuffer");
         SocketChannel client = (SocketChannel) key.channel();
         int readBytes = client.read(inBuffer);
-        Debug.DEBUG("handleRead: Read data from connection " + client + " for "
-                + readBytes + " byte(s); to buffer " + inBuffer);
+        if (Debug.on(3)) {
+            Debug.DEBUG("handleRead: Read data from connection " + client + " for "
+                    + readBytes + " byte(s); to buffer " + inBuffer);
+        }
 
         if (readBytes == -1) { // end of stream
-            requestComplete = true;
-            
             Debug.DEBUG("handleRead: readBytes == -1");
-        } else {
-            inBuffer.flip(); // read input
-            // outBuffer = ByteBuffer.allocate( inBuffer.remaining() );
-            boolean startLine = true;
-            char prech = ' ';
-            while (!requestComplete && inBuffer.hasRemaining()
-                    && request.length() < request.capacity()) {
-                char ch = (char) inBuffer.get();
-                Debug.DEBUG("Ch: " + ch, 3);
-                request.append(ch);
-                if (ch == '\n' && prech == '\r') {
-                	if(startLine == true){
-                		requestComplete = true;
-                        // client.shutdownInput();
-                        Debug.DEBUG("handleRead: find terminating chars");
-                	}else{
-                		startLine = true;
-                	}     	
-                }
-                if(ch != '\n' && ch != '\r'){ 
-                	startLine = false;
-                }// end if
-                prech = ch;
-            }// end of while
-             
-        }
-
-        inBuffer.clear(); // we do not keep things in the inBuffer
-
-        if (requestComplete) {
-            generateResponse();
+            inputClosed = true;
         }
+        processRequest(key);
 
     } // end of process input
 
-    private void generateResponse() {
-    	HTTPResponse response = RequestHandler.getResponse(HTTPRequest.parse(request.toString()));
-        outBuffer.put(response.getBytes());
-        outBuffer.flip();
+    // parse buffered bytes, start the response once a request is complete
+    private void processRequest(SelectionKey key) {
+        inBuffer.flip(); // read input
+        HTTPRequest parsed = parser.parse(inBuffer);
+        inBuffer.compact(); // keep bytes of a pipelined request
+        if (parsed == null && inputClosed) {
+            parsed = parser.finish();
+            if (parsed == null && !parser.hasError()) {
+                // closed before a whole request arrived, nothing to answer
+                channelReadyToClose = true;
+                return;
+            }
+        }
+
+        if (parsed != null || parser.hasError()) {
+            requestComplete = true;
+            RequestHandler.getConnections().busy(this);
+            Debug.DEBUG("handleRead: find terminating chars");
+            // the connection is busy now, idle timeout does not apply
+            cancelIdleTimeout();
+            generateResponse(key, parsed);
+        }
+    }
+
+    // reset the state machine for the next request on this connection
+    private void startNextRequest(SelectionKey key) {
+        requestComplete = false;
+        responseReady = false;
+        responseSent = false;
+        keepAlive = false;
+        parser.reset();
+
+        // a pipelined request may already be in the buffer
+        processRequest(key);
+        if (!requestComplete && !channelReadyToClose) {
+            // idle until the next request arrives
+            idleTimeout = dispatcher.scheduleIdleTimeout(key);
+            RequestHandler.getConnections().idle(this);
+        }
+    }
+
+    private void generateResponse(final SelectionKey key, final HTTPRequest parsed) {
+        if (parsed == null) {
+            if (Debug.on(1)) {
+                Debug.DEBUG("handleRead: bad request, " + parser.getError(), 1);
+            }
+            HTTPResponse response = new HTTPResponse(400);
+            response.setConnection(null, false);
+            keepAlive = false;
+            RequestHandler.logAccess(clientAddress(), null, response);
+            responseWriter = new ResponseWriter(response);
+            responseReady = true;
+            return;
+        }
+        if (workers == null) {
+            responseGenerated(parsed, RequestHandler.getBufferedResponse(parsed));
+            return;
+        }
+        // parsing stays on the reactor, the response may block on disk or a
+        // CGI process, so it is generated by a worker and posted back
+        workers.execute(new Runnable() {
+            public void run() {
+                final HTTPResponse response = RequestHandler.getBufferedResponse(parsed);
+                dispatcher.invokeLater(new Runnable() {
+                    public void run() {
+                        if (channelClosed || !key.isValid()) {
+                            return; // timed out or closed meanwhile
+                        }
+                        responseGenerated(parsed, response);
+                        try {
+                            updateState(key); // enables OP_WRITE
+                        } catch (IOException ex) {
+                            release();
+                            key.cancel();
+                            try {
+                                key.channel().close();
+                            } catch (IOException cex) {
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void responseGenerated(HTTPRequest parsed, HTTPResponse response) {
+        keepAlive = RequestHandler.keepAlive(parsed, response, served);
+        RequestHandler.logAccess(clientAddress(), parsed, response);
+        responseWriter = new ResponseWriter(response);
         responseReady = true;
     } // end of generate response
 
+    private InetAddress clientAddress() {
+        return ((SocketChannel) key.channel()).socket().getInetAddress();
+    }
+
 	@Override
 	// cancel current client
+	// the dispatcher closes the channel right after
 	public void cancel() {
 		channelReadyToClose = true;
-		
+		release();
+	}
+
+	// give the connection's buffers back, the handler is done afterwards
+	private void release() {
+		if (channelClosed) {
+			return;
+		}
+		channelClosed = true;
+		RequestHandler.getConnections().closed(this);
+		if (responseWriter != null) {
+			responseWriter.close();
+			responseWriter = null;
+		}
+		BufferPool.SHARED.release(inBuffer);
+		inBuffer = null;
+		parser = null;
+		cancelIdleTimeout();
+	}
+
+	@Override
+	public void setIdleTimeout(TimingWheel.Timeout timeout) {
+		this.idleTimeout = timeout;
+	}
+
+	private void cancelIdleTimeout() {
+		if (idleTimeout != null) {
+			idleTimeout.cancel();
+			idleTimeout = null;
+		}
+	}
+
+	@Override
+	public void setDispatcher(Dispatcher dispatcher, SelectionKey key) {
+		this.dispatcher = dispatcher;
+		this.key = key;
+		// only once registered, a handler that fails to register is dropped without release()
+		inBuffer = BufferPool.SHARED.acquire(4096); // returned in release()
+		RequestHandler.getConnections().opened(this);
 	}
 
+	// called by a draining server on another thread, the close happens on the dispatcher
 	@Override
-	public void setTimeoutthread(ITimeoutThread timeoutThread) {
-		this.ITimeoutThread  = timeoutThread;
+	public void wakeIdle() {
+		dispatcher.invokeLater(new Runnable() {
+			public void run() {
+				// a request may have arrived since, that one is still answered
+				if (!channelClosed && !requestComplete && inBuffer.position() == 0) {
+					closeNow();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void forceClose() {
+		dispatcher.invokeLater(new Runnable() {
+			public void run() {
+				if (!channelClosed) {
+					closeNow();
+				}
+			}
+		});
+	}
+
+	private void closeNow() {
+		release();
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+		}
 	}
 	
 	public boolean isChannelClosed() {
@@ -1,7 +1,18 @@
 package asyncServer;
 public class EchoLineReadWriteHandlerFactory implements
         ISocketReadWriteHandlerFactory {
+    private final WorkerPool workers;
+
+    public EchoLineReadWriteHandlerFactory() {
+        this(null);
+    }
+
+    // workers may be null to generate responses on the dispatcher thread
+    public EchoLineReadWriteHandlerFactory(WorkerPool workers) {
+        this.workers = workers;
+    }
+
     public IReadWriteHandler createHandler() {
-        return new EchoLineReadWriteHandler();
+        return new EchoLineReadWriteHandler(workers);
     }
 }
@@ -4,14 +4,21 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
+import java.time.Duration;
+import java.util.function.IntSupplier;
 
 import server.HTTPServer;
+import server.RequestHandler;
 import server.ServerConfig;
 import utility.Debug;
 
 public class HTTPAsyncServer implements HTTPServer{
 
 	private ServerConfig config;
+	private ServerSocketChannel serverChannel;
+	private Dispatcher dispatcher; // accepts, and serves too without sub-reactors
+	private Dispatcher[] subReactors;
+	private WorkerPool workers;
     public ServerSocketChannel openServerChannel(int port) {
         ServerSocketChannel serverChannel = null;
         try {
@@ -44,20 +51,47 @@ public class HTTPAsyncServer implements HTTPServer{
 
 	public void start() {
 
-		// start monitor thread
-		TimeoutThread timeoutThread = new TimeoutThread();
-		timeoutThread.start();
-        // get dispatcher/selector
-        Dispatcher dispatcher = new Dispatcher(timeoutThread);
-
         // open server socket channel
         int port = this.config.port;
         
         ServerSocketChannel sch = openServerChannel(port);
+        serverChannel = sch;
 
         // create server acceptor for Echo Line ReadWrite Handler
-        ISocketReadWriteHandlerFactory echoFactory = new EchoLineReadWriteHandlerFactory();
-        Acceptor acceptor = new Acceptor(echoFactory, timeoutThread);
+        if (config.workerThreads > 0) {
+            workers = new WorkerPool(config.workerThreads, config.workerQueueSize);
+            final WorkerPool pool = workers;
+            RequestHandler.getHealthMonitor().setQueue(new IntSupplier() {
+                public int getAsInt() {
+                    return pool.queueDepth();
+                }
+            });
+            // queue depth and wait time tell whether the pool is sized right
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    System.out.println(pool);
+                }
+            });
+        }
+        ISocketReadWriteHandlerFactory echoFactory = new EchoLineReadWriteHandlerFactory(workers);
+
+        int reactors = config.selectorThreads < 0 ? config.threadPoolSize : config.selectorThreads;
+        Acceptor acceptor;
+        if (reactors > 0) {
+            // main reactor only accepts, connections are served by N sub-reactors
+            subReactors = new Dispatcher[reactors];
+            for (int i = 0; i < reactors; i++) {
+                subReactors[i] = new Dispatcher(idleTimeout());
+                new Thread(subReactors[i], "sub-reactor-" + i).start();
+            }
+            dispatcher = new Dispatcher(0);
+            acceptor = new Acceptor(echoFactory, subReactors);
+        } else {
+            // get dispatcher/selector, it also reaps idle (keep-alive) connections
+            dispatcher = new Dispatcher(idleTimeout());
+            acceptor = new Acceptor(echoFactory, dispatcher);
+        }
 
         Thread dispatcherThread;
         // register the server channel to a selector
@@ -66,7 +100,7 @@ public class HTTPAsyncServer implements HTTPServer{
             key.attach(acceptor);
             
             // start dispatcher
-            dispatcherThread = new Thread(dispatcher);
+            dispatcherThread = new Thread(dispatcher, "main-reactor");
             dispatcherThread.start();
        
         } catch (IOException ex) {
@@ -76,4 +110,41 @@ public class HTTPAsyncServer implements HTTPServer{
         // may need to join the dispatcher thread
     } // end of main
 
+    @Override
+    public int stop(Duration drainTimeout) {
+        // stop accepting; the main reactor keeps serving its connections without sub-reactors
+        final ServerSocketChannel sch = serverChannel;
+        dispatcher.invokeLater(new Runnable() {
+            public void run() {
+                SelectionKey key = sch.keyFor(dispatcher.selector());
+                if (key != null) {
+                    key.cancel();
+                }
+                try {
+                    sch.close();
+                } catch (IOException ex) {
+                }
+            }
+        });
+        int drained = RequestHandler.getConnections().drain(drainTimeout);
+        dispatcher.shutdown();
+        if (subReactors != null) {
+            for (Dispatcher d : subReactors) {
+                d.shutdown();
+            }
+        }
+        if (workers != null) {
+            workers.shutdown();
+        }
+        return drained;
+    }
+
+    // in milliseconds; without keep-alive, idle clients still get 3 seconds
+    private long idleTimeout() {
+        if (config.keepAliveTimeout > 0) {
+            return config.keepAliveTimeout * 1000L;
+        }
+        return 3000;
+    }
+
 } // end of class
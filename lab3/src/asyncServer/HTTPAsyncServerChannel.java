@@ -1,23 +1,57 @@
 package asyncServer;
 
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import server.ConnectionTracker;
 import server.HTTPServer;
 import server.RequestHandler;
 import server.ServerConfig;
+import utility.BufferPool;
 import utility.Debug;
 import utility.HTTPRequest;
+import utility.HTTPRequestParser;
 import utility.HTTPResponse;
+
+/**
+ * Completion handler server. Sockets belong to a channel group of its own,
+ * ChannelThreads threads strong, and file bodies are read with an
+ * AsynchronousFileChannel on a pool of as many threads, a chunk at a time
+ * into one pooled buffer that is written out before the next chunk is
+ * read. No handler reads a file itself: cache misses are loaded into the
+ * cache on the file pool while the response is streamed from disk.
+ * Connections waiting for a request are closed after KeepAliveTimeout, and
+ * a request has to arrive in full within KeepAliveTimeout of its first
+ * bytes.
+ */
 public class HTTPAsyncServerChannel implements HTTPServer{
 	ServerConfig config;
+	private AsynchronousServerSocketChannel server;
+	private AsynchronousChannelGroup group;
+	private ExecutorService fileIO;
+	private final CountDownLatch stopped = new CountDownLatch(1);
 	public static void main(String[] args) throws Exception {
     
   }
@@ -27,15 +61,19 @@ public class HTTPAsyncServerChannel implements HTTPServer{
   
   @Override
   public void start() throws IOException{
-	  AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open();
+	  int threads = config.channelThreads > 0 ? config.channelThreads : config.threadPoolSize;
+	  group = AsynchronousChannelGroup.withFixedThreadPool(threads, daemonThreads("channel-io"));
+	  fileIO = Executors.newFixedThreadPool(threads, daemonThreads("file-io"));
+	  server = AsynchronousServerSocketChannel.open(group);
 		    InetSocketAddress sAddr = new InetSocketAddress(config.servername, config.port);
 		    server.bind(sAddr);
 		    System.out.format("Server is listening at %s%n", sAddr);
 		    Attachment attach = new Attachment();
 		    attach.server = server;
+		    attach.fileIO = fileIO;
 		    server.accept(attach, new ConnectionHandler());
 		    try{
-		    	Thread.currentThread().join();
+		    	stopped.await(); // the channel group's threads serve the connections
 		    }catch(InterruptedException e){
 		    	e.printStackTrace();
 		    	
@@ -43,13 +81,66 @@ public class HTTPAsyncServerChannel implements HTTPServer{
 		      
   }
 
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  @Override
+  public int stop(Duration drainTimeout) {
+    try {
+      server.close(); // the pending accept fails, no new connections
+    } catch (IOException e) {
+    }
+    int drained = RequestHandler.getConnections().drain(drainTimeout);
+    try {
+      group.shutdownNow();
+    } catch (IOException e) {
+    }
+    fileIO.shutdownNow();
+    stopped.countDown();
+    return drained;
+  }
+
 }
-class Attachment {
+class Attachment implements ConnectionTracker.Drainable {
   AsynchronousServerSocketChannel server;
   AsynchronousSocketChannel client;
   ByteBuffer buffer;
+  ByteBuffer[] response; // header and body, written in order
+  ExecutorService fileIO; // reads files and completes the reads
+  AsynchronousFileChannel file; // body still to be sent from disk, else null
+  long filePosition, fileEnd;
+  ByteBuffer chunk; // next part of the file, the first one led by the header
+  HTTPRequestParser parser;
+  boolean keepAlive; // connection stays open after the current response
+  int served; // responses sent on this connection
+  long deadline; // System.nanoTime() by which the next request must be complete, 0 for none
   SocketAddress clientAddr;
   boolean isRead;
+
+  // the next request is due within KeepAliveTimeout from now
+  void restartDeadline() {
+    int timeout = RequestHandler.getKeepAliveTimeout();
+    deadline = timeout > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout) : 0;
+  }
+
+  // the pending read fails and the connection is closed in failed()
+  public void wakeIdle() {
+    forceClose();
+  }
+
+  public void forceClose() {
+    try {
+      client.close();
+    } catch (IOException e) {
+    }
+  }
 }
 
 // accept handler
@@ -59,16 +150,23 @@ class ConnectionHandler implements
   public void completed(AsynchronousSocketChannel client, Attachment attach) {
     try {
       SocketAddress clientAddr = client.getRemoteAddress();
-      Debug.DEBUG(String.format("Accepted a  connection from  %s%n", clientAddr));
+      if (Debug.on(3)) {
+        Debug.DEBUG(String.format("Accepted a  connection from  %s", clientAddr), 3);
+      }
       attach.server.accept(attach, this); // accept for next connection
       ReadWriteHandler rwHandler = new ReadWriteHandler();
       Attachment newAttach = new Attachment();
       newAttach.server = attach.server;
+      newAttach.fileIO = attach.fileIO;
       newAttach.client = client;
-      newAttach.buffer = ByteBuffer.allocate(4096 * 1024);
+      // requests are parsed as they arrive, a small pooled buffer is enough
+      newAttach.buffer = BufferPool.SHARED.acquire(4096);
       newAttach.isRead = true;
+      newAttach.parser = new HTTPRequestParser();
       newAttach.clientAddr = clientAddr;
-      client.read(newAttach.buffer, newAttach, rwHandler); 
+      RequestHandler.getConnections().opened(newAttach);
+      newAttach.restartDeadline();
+      rwHandler.read(newAttach);
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -76,63 +174,231 @@ class ConnectionHandler implements
 
   @Override
   public void failed(Throwable e, Attachment attach) {
+    if (e instanceof AsynchronousCloseException) {
+      return; // server channel closed by stop()
+    }
     System.out.println("Failed to accept a  connection.");
     e.printStackTrace();
   }
 }
 
 class ReadWriteHandler implements CompletionHandler<Integer, Attachment> {
+  private static final int FILE_CHUNK = 64 * 1024;
+  private static final Set<OpenOption> READ = Collections.<OpenOption> singleton(StandardOpenOption.READ);
+
+  private final FileReadHandler fileReader = new FileReadHandler();
+
   @Override
   public void completed(Integer result, Attachment attach) {
-    if (result == -1) {
-      try {
-        attach.client.close();
-        attach.buffer = null;
-        Debug.DEBUG(String.format("Stopped   listening to the   client %s%n",
-            attach.clientAddr), 3);
-      } catch (IOException ex) {
-        ex.printStackTrace();
+    if (attach.isRead) {
+      RequestHandler.getConnections().busy(attach);
+      HTTPRequest request;
+      if (result == -1) {
+        request = attach.parser.finish();
+        if (request == null && !attach.parser.hasError()) {
+          close(attach);
+          return;
+        }
+      } else {
+        boolean started = attach.parser.inProgress();
+        request = parse(attach);
+        if (request == null && !attach.parser.hasError()) {
+          if (!started && attach.parser.inProgress()) {
+            attach.restartDeadline(); // the first bytes of a request, the rest is due within the timeout
+          }
+          // request split across reads, wait for the rest
+          read(attach);
+          return;
+        }
+      }
+      respond(request, attach);
+    } else {
+      // a write may be partial, keep going until the response is out
+      ByteBuffer next = nextToWrite(attach);
+      if (next != null) {
+        attach.client.write(next, attach, this);
+        return;
+      }
+      if (attach.file != null && attach.filePosition < attach.fileEnd) {
+        attach.chunk.clear();
+        readFile(attach);
+        return;
+      }
+      closeFile(attach);
+      attach.response = null;
+      if (!attach.keepAlive) {
+        // Write to the client, completed
+        // recycle resources
+        close(attach);
+        return;
+      }
+      // persistent connection, a pipelined request may already be buffered
+      attach.served++;
+      attach.isRead = true;
+      attach.parser.reset();
+      HTTPRequest request = parse(attach);
+      if (request != null || attach.parser.hasError()) {
+        respond(request, attach);
+      } else {
+        // between requests, a drain may end the connection here
+        RequestHandler.getConnections().idle(attach);
+        attach.restartDeadline();
+        read(attach);
       }
+    }
+  }
+
+  private HTTPRequest parse(Attachment attach) {
+    attach.buffer.flip();
+    HTTPRequest request = attach.parser.parse(attach.buffer);
+    attach.buffer.compact(); // keep bytes of a pipelined request
+    return request;
+  }
+
+  // read more of the request, until the connection's deadline; connections past it are dropped in failed()
+  void read(Attachment attach) {
+    if (attach.deadline == 0) {
+      attach.client.read(attach.buffer, attach, this);
       return;
     }
+    long left = TimeUnit.NANOSECONDS.toMillis(attach.deadline - System.nanoTime());
+    if (left <= 0) {
+      failed(new InterruptedByTimeoutException(), attach);
+      return;
+    }
+    attach.client.read(attach.buffer, left, TimeUnit.MILLISECONDS, attach, this);
+  }
 
-    if (attach.isRead) {
-      attach.buffer.flip();
-      int limits = attach.buffer.limit();
-      byte bytes[] = new byte[limits];
-      attach.buffer.get(bytes, 0, limits);
-      String msg = new String(bytes, StandardCharsets.US_ASCII);
-      HTTPRequest request = HTTPRequest.parse(msg);
-      HTTPResponse response = RequestHandler.getResponse(request);
-      
-      attach.isRead = false; // It is a write
-      //attach.buffer.rewind();
-      attach.buffer.clear();
-      attach.buffer.put(response.getBytes());
-      attach.buffer.flip();
-      Debug.DEBUG("Ready to write\n" + response, 3);
-      attach.client.write(attach.buffer, attach, this);
+  private void respond(HTTPRequest request, Attachment attach) {
+    HTTPResponse response;
+    if (request == null) {
+      response = new HTTPResponse(400);
+      response.setConnection(null, false);
+      attach.keepAlive = false;
+      RequestHandler.logAccess(clientAddress(attach), null, response);
     } else {
-      // Write to the client, completed
-      // recycle resources
-    	try {
-                        attach.buffer = null;
-			attach.client.close();
-			
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-    	
-//      attach.client.write(attach.buffer, attach, this);
-//      attach.isRead = true;
-//      attach.buffer.clear();
-//      attach.client.read(attach.buffer, attach, this);
+      response = RequestHandler.getFileStreamingResponse(request, attach.fileIO);
+      attach.keepAlive = RequestHandler.keepAlive(request, response, attach.served);
+      RequestHandler.logAccess(clientAddress(attach), request, response);
+    }
+
+    attach.isRead = false; // It is a write
+    try {
+      if (response.getFile() != null) {
+        byte[] header = response.getHeaderBytes();
+        attach.file = AsynchronousFileChannel.open(response.getFile().toPath(), READ, attach.fileIO);
+        attach.filePosition = response.getBodyOffset();
+        attach.fileEnd = attach.filePosition + response.getContentLength();
+        // the header goes out with the first chunk
+        attach.chunk = BufferPool.SHARED.acquire(
+            (int) Math.max(header.length, Math.min(FILE_CHUNK, header.length + response.getContentLength())));
+        attach.chunk.put(header);
+        if (Debug.on(3)) {
+          Debug.DEBUG("Ready to stream\n" + response, 3);
+        }
+        readFile(attach);
+        return;
+      }
+      attach.response = new ByteBuffer[] {
+          ByteBuffer.wrap(response.getHeaderBytes()), response.getBodyBuffer() };
+    } catch (IOException e) {
+      failed(e, attach);
+      return;
+    }
+    if (Debug.on(3)) {
+      Debug.DEBUG("Ready to write\n" + response, 3);
+    }
+    attach.client.write(nextToWrite(attach), attach, this);
+  }
+
+  private static InetAddress clientAddress(Attachment attach) {
+    return attach.clientAddr instanceof InetSocketAddress ? ((InetSocketAddress) attach.clientAddr).getAddress() : null;
+  }
+
+  // fill the chunk from the file, it is written in fileReader
+  private void readFile(Attachment attach) {
+    ByteBuffer chunk = attach.chunk;
+    long left = attach.fileEnd - attach.filePosition;
+    if (chunk.remaining() > left) {
+      chunk.limit(chunk.position() + (int) left);
+    }
+    if (!chunk.hasRemaining()) {
+      // an empty body, only the header is left
+      fileReader.completed(0, attach);
+      return;
+    }
+    attach.file.read(chunk, attach.filePosition, attach, fileReader);
+  }
+
+  private class FileReadHandler implements CompletionHandler<Integer, Attachment> {
+    @Override
+    public void completed(Integer result, Attachment attach) {
+      if (result == -1) {
+        failed(new EOFException("file shrank while it was sent"), attach);
+        return;
+      }
+      attach.filePosition += result;
+      attach.chunk.flip();
+      attach.response = new ByteBuffer[] { attach.chunk };
+      attach.client.write(attach.chunk, attach, ReadWriteHandler.this);
+    }
+
+    @Override
+    public void failed(Throwable e, Attachment attach) {
+      ReadWriteHandler.this.failed(e, attach);
     }
   }
 
+  private static void closeFile(Attachment attach) {
+    if (attach.file == null) {
+      return;
+    }
+    try {
+      attach.file.close();
+    } catch (IOException e) {
+    }
+    attach.file = null;
+    BufferPool.SHARED.release(attach.chunk);
+    attach.chunk = null;
+  }
+
+  private static void close(Attachment attach) {
+    RequestHandler.getConnections().closed(attach);
+    closeFile(attach);
+    BufferPool.SHARED.release(attach.buffer);
+    attach.buffer = null;
+    attach.response = null;
+    try {
+      attach.client.close();
+      if (Debug.on(3)) {
+        Debug.DEBUG(String.format("Stopped   listening to the   client %s", attach.clientAddr), 3);
+      }
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  // first response buffer that still has bytes to send, null when done
+  private static ByteBuffer nextToWrite(Attachment attach) {
+    for (ByteBuffer b : attach.response) {
+      if (b.hasRemaining()) {
+        return b;
+      }
+    }
+    return null;
+  }
+
   @Override
   public void failed(Throwable e, Attachment attach) {
-    e.printStackTrace();
+    if (e instanceof InterruptedByTimeoutException) {
+      if (Debug.on(2)) {
+        Debug.DEBUG("keep-alive timeout, served " + attach.served + " requests", 2);
+      }
+    } else if (e instanceof AsynchronousCloseException) {
+      Debug.DEBUG("connection closed while draining", 2);
+    } else {
+      e.printStackTrace();
+    }
+    close(attach);
   }
 }
@@ -9,5 +9,8 @@ public interface IReadWriteHandler extends IChannelHandler {
     
     // cancel current client
     public void cancel();
-	public void setTimeoutthread(ITimeoutThread timeoutThread);
+	// idle timeout armed at registration, null if connections never time out
+	public void setIdleTimeout(TimingWheel.Timeout timeout);
+	// dispatcher whose selector the connection is registered with, and its key there
+	public void setDispatcher(Dispatcher dispatcher, SelectionKey key);
 }
\ No newline at end of file
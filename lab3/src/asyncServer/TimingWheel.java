@@ -0,0 +1,128 @@
+package asyncServer;
+
+import java.nio.channels.SelectionKey;
+import java.util.List;
+
+/**
+ * Hashed timing wheel for connection timeouts. Each slot covers one tick
+ * and holds a doubly linked list of the timeouts due in it, so scheduling
+ * and cancelling are O(1) no matter how many connections are open.
+ *
+ * Not thread safe: it belongs to one Dispatcher and is only used on that
+ * dispatcher's thread, which expires timeouts between two selects.
+ */
+public class TimingWheel {
+	private final long tickMillis;
+	private final Timeout[] slots; // sentinel heads of circular lists
+	private final int mask;
+	private final long startTime;
+	private long currentTick = 0; // last tick whose slot was processed
+	private int size = 0;
+
+	public TimingWheel(long tickMillis, int slotCount) {
+		int n = 1;
+		while (n < slotCount) {
+			n <<= 1;
+		}
+		this.tickMillis = tickMillis;
+		this.mask = n - 1;
+		this.slots = new Timeout[n];
+		for (int i = 0; i < n; i++) {
+			Timeout head = new Timeout(null, 0, null);
+			head.prev = head.next = head;
+			slots[i] = head;
+		}
+		this.startTime = System.currentTimeMillis();
+	}
+
+	// key expires after delayMillis, rounded up to the next tick
+	public Timeout schedule(SelectionKey key, long delayMillis) {
+		long deadline = System.currentTimeMillis() + delayMillis;
+		long tick = (deadline - startTime + tickMillis - 1) / tickMillis;
+		if (tick <= currentTick) {
+			tick = currentTick + 1;
+		}
+		Timeout head = slots[(int) (tick & mask)];
+		Timeout t = new Timeout(key, tick, this);
+		t.prev = head.prev;
+		t.next = head;
+		head.prev.next = t;
+		head.prev = t;
+		size++;
+		return t;
+	}
+
+	/**
+	 * Milliseconds the dispatcher may block in select() before the next
+	 * timeout is due, 0 if nothing is scheduled (block indefinitely).
+	 */
+	public long millisToNextTimeout(long now) {
+		if (size == 0) {
+			return 0;
+		}
+		// the nearest non-empty slot; entries there may be a round later,
+		// which only costs one early wakeup
+		long tick = currentTick + 1;
+		for (int i = 0; i < slots.length; i++, tick++) {
+			Timeout head = slots[(int) (tick & mask)];
+			if (head.next != head) {
+				break;
+			}
+		}
+		long wait = startTime + tick * tickMillis - now;
+		return wait < 1 ? 1 : wait;
+	}
+
+	// unlink every timeout due by now and add its key to expired
+	public void expire(long now, List<SelectionKey> expired) {
+		long nowTick = (now - startTime) / tickMillis;
+		// after a long stall every slot is visited once
+		long steps = Math.min(nowTick - currentTick, slots.length);
+		for (long i = 1; i <= steps; i++) {
+			Timeout head = slots[(int) ((currentTick + i) & mask)];
+			Timeout t = head.next;
+			while (t != head) {
+				Timeout next = t.next;
+				if (t.tick <= nowTick) {
+					t.unlink();
+					expired.add(t.key);
+				}
+				t = next;
+			}
+		}
+		if (nowTick > currentTick) {
+			currentTick = nowTick;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public static class Timeout {
+		final SelectionKey key;
+		final long tick;
+		private final TimingWheel wheel;
+		Timeout prev, next;
+
+		Timeout(SelectionKey key, long tick, TimingWheel wheel) {
+			this.key = key;
+			this.tick = tick;
+			this.wheel = wheel;
+		}
+
+		// remove from the wheel, safe to call more than once
+		public void cancel() {
+			if (next != null) {
+				unlink();
+			}
+		}
+
+		private void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = next = null;
+			wheel.size--;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package asyncServer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool that generates responses off the dispatcher threads, so a
+ * disk read or a CGI process on one connection does not stall every other
+ * connection of the same selector.
+ *
+ * When the queue is full the task runs on the submitting dispatcher, which
+ * slows that reactor down instead of dropping the request.
+ */
+public class WorkerPool {
+	private final ThreadPoolExecutor executor;
+	private final LongAdder executed = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final LongAdder callerRuns = new LongAdder();
+
+	public WorkerPool(int threads, int queueSize) {
+		final AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "worker-" + count.getAndIncrement());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+						callerRuns.increment();
+						r.run();
+					}
+				});
+		executor.prestartAllCoreThreads();
+	}
+
+	public void execute(final Runnable task) {
+		final long queued = System.nanoTime();
+		executor.execute(new Runnable() {
+			public void run() {
+				long wait = System.nanoTime() - queued;
+				executed.increment();
+				waitNanos.add(wait);
+				long max;
+				while (wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait))
+					;
+				task.run();
+			}
+		});
+	}
+
+	// tasks waiting for a worker
+	public int queueDepth() {
+		return executor.getQueue().size();
+	}
+
+	// workers busy generating a response
+	public int active() {
+		return executor.getActiveCount();
+	}
+
+	// mean time a task waited in the queue, in milliseconds
+	public double avgWaitMillis() {
+		long n = executed.sum();
+		return n == 0 ? 0 : waitNanos.sum() / 1e6 / n;
+	}
+
+	public double maxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Workers: %d threads, queue depth %d, executed %d, avg wait %.3f ms, max wait %.3f ms,"
+				+ " run on dispatcher %d", executor.getCorePoolSize(), queueDepth(), executed.sum(), avgWaitMillis(),
+				maxWaitMillis(), callerRuns.sum());
+	}
+}
@@ -6,7 +6,8 @@ import java.util.Map;
 class ClientArgument {
 	public final String server, host, filename;
 	public final int port, parallel, T, verbose;
-	private ClientArgument(String server, String host, String filename, int port, int parallel, int T, int verbose){
+	public final double rate; // requests per second over all threads, 0: closed loop
+	private ClientArgument(String server, String host, String filename, int port, int parallel, int T, int verbose, double rate){
 		this.server = server;
 		this.host = host;
 		this.filename = filename;
@@ -14,6 +15,7 @@ class ClientArgument {
 		this.parallel = parallel;
 		this.T = T;
 		this.verbose = verbose;
+		this.rate = rate;
 	}
 	static final String prompt;
 	static final Map<String, String> m_err_prompt;
@@ -25,7 +27,8 @@ class ClientArgument {
 				+ "[-port] <port> "
 				+ "[-parallel] <# threads> "
 				+ "[-files] <filename> "
-				+ "[-T] <timeout seconds>");
+				+ "[-T] <timeout seconds> "
+				+ "[-rate] <requests per second>");
 		
 		m_err_prompt = new HashMap<String, String>();
 		m_err_prompt.put("-server", "requires a server ip");
@@ -34,6 +37,7 @@ class ClientArgument {
 		m_err_prompt.put("-parallel", "requires a number of threads");
 		m_err_prompt.put("-files", "requires an input file");
 		m_err_prompt.put("-T", "requires a timeout seconds");
+		m_err_prompt.put("-rate", "requires a number of requests per second");
 		
 	}
 	//%java SHTTPTestClient
@@ -43,6 +47,8 @@ class ClientArgument {
 	// -parallel <# of threads> 
 	// -files <file name> 
 	// -T <time of test in seconds>
+	// -rate <requests per second>, open loop; without it each thread
+	//       sends its next request as soon as the last one is answered
     public static ClientArgument parse(String[] args) {
     	
         int i = 0;
@@ -51,6 +57,7 @@ class ClientArgument {
         int verbose = 0;
         String server = null, host = null, filename = null;
         int port = 80, parallel = 1, T = 3; // default value
+        double rate = 0;
         while (i < args.length && args[i].startsWith("-")) {
             arg = args[i++];
             switch(arg){
@@ -114,6 +121,14 @@ class ClientArgument {
                     	System.err.println("-T " + ClientArgument.m_err_prompt.get("-T"));
                     }
             		break;
+            	case "-rate":
+            		if (i < args.length)
+                        rate = Double.valueOf(args[i++]);
+                    else{
+                    	isError = true;
+                    	System.err.println("-rate " + ClientArgument.m_err_prompt.get("-rate"));
+                    }
+            		break;
             	default:
             		System.err.println("Unknown argument: " + arg);
             		break;
@@ -125,7 +140,7 @@ class ClientArgument {
         }
         else{
         	// success
-        	return new ClientArgument(server, host, filename, port, parallel, T, verbose);
+        	return new ClientArgument(server, host, filename, port, parallel, T, verbose, rate);
         }
     }
     @Override
@@ -138,6 +153,7 @@ class ClientArgument {
     	s += "\tport: " + this.port + "\n";
     	s += "\tparallel: " + this.parallel + "\n";
     	s += "\tT: " + this.T + "\n";
+    	s += "\trate: " + (this.rate > 0 ? this.rate + " requests/s" : "closed loop") + "\n";
     	s += "\tverbose: " + this.verbose;
     	return s;
     }
@@ -1,13 +1,13 @@
 package client;
 
-import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 
 import utility.HTTPRequest;
+import utility.LatencyHistogram;
 import utility.PerformanceData;
 import utility.SocketFactory;
 
@@ -18,6 +18,7 @@ public class RequestSender implements Runnable {
 	private int verbose = 0;
 	private volatile Thread thisThread;
 	private ArrayList<HTTPRequest> requestList;
+	private long intervalNanos = 0; // open-loop: time between request starts, 0 for closed loop
 	public RequestSender(int pid, SocketFactory clientSocketFactory, ArrayList<HTTPRequest> requestList,
 			PerformanceData pd) {
 		this.pid = pid;
@@ -30,6 +31,16 @@ public class RequestSender implements Runnable {
 		this.verbose = v;
 	}
 
+	/**
+	 * Send rate requests per second on a fixed schedule instead of one
+	 * right after the other. A slow response does not delay the schedule,
+	 * the requests that fell behind go out at once and their latency is
+	 * also measured from when they were due.
+	 */
+	public void setRate(double rate) {
+		this.intervalNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+	}
+
 	// stop current thread
 	public void stop() {
 		Thread thread = this.thisThread;
@@ -42,9 +53,14 @@ public class RequestSender implements Runnable {
 	public void run() {
 		long total_recv_byte_num = 0;
 		long total_recv_packet_num = 0;
-		long total_response_milli_seconds = 0;
+		long total_response_micro_seconds = 0;
+		LatencyHistogram firstByte = new LatencyHistogram();
+		LatencyHistogram lastByte = new LatencyHistogram();
+		LatencyHistogram lastByteIntended = new LatencyHistogram();
+		byte[] buffer = new byte[64 * 1024];
 		this.thisThread = Thread.currentThread();
 		Socket socket = null;
+		long nextStart = System.nanoTime(); // open-loop: when the next request is due
 
 		// while current thread still need to run
 		while (this.thisThread != null) {
@@ -52,8 +68,18 @@ public class RequestSender implements Runnable {
 				try {
 					if (this.thisThread == null)
 						break; // stop running
+					long intendedTime = 0;
+					if (this.intervalNanos > 0) {
+						intendedTime = nextStart;
+						nextStart += this.intervalNanos;
+						long wait = intendedTime - System.nanoTime();
+						if (wait > 0) {
+							Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+						}
+					}
+					// latency includes connecting
+					long startTime = System.nanoTime();
 					socket = this.clientSocketFactory.getSocket();
-					// Thread.sleep(1000 * 10);
 					long recv_byte_num = 0;
 					// write to server
 					print("Sending request: " + req.getURL() + " to " + socket.getInetAddress().getHostName(), 1);
@@ -63,27 +89,33 @@ public class RequestSender implements Runnable {
 					// socket shutdown output
 					outToServer.flush();
 					socket.shutdownOutput();
-					long startTime = System.currentTimeMillis();
 
 					// recv response
-					// create read stream and receive from server
 					print("Recieving response from: " + socket.getInetAddress(), 1);
-					BufferedReader inFromServer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-					String sentenceFromServer;
-					long responseTime = System.currentTimeMillis() - startTime;
-					// read recv line by line
-					// parse header
-					while ((sentenceFromServer = inFromServer.readLine()) != null) {
-						total_recv_byte_num += sentenceFromServer.length() + 2; // \r\n
+					InputStream inFromServer = socket.getInputStream();
+					int n = inFromServer.read(buffer);
+					long firstByteTime = System.nanoTime();
+					while (n != -1) {
+						recv_byte_num += n;
+						n = inFromServer.read(buffer);
+					}
+					long endTime = System.nanoTime();
+					long responseTime = (endTime - startTime) / 1000;
+					firstByte.record((firstByteTime - startTime) / 1000);
+					lastByte.record(responseTime);
+					if (this.intervalNanos > 0) {
+						lastByteIntended.record((endTime - intendedTime) / 1000);
 					}
-					print("Response time: " + responseTime, 1);
+					print("Response time: " + responseTime + " us", 1);
 					print("Recv bytes: " + recv_byte_num, 1);
 					total_recv_byte_num += recv_byte_num;
 					total_recv_packet_num++;
-					total_response_milli_seconds += responseTime;
+					total_response_micro_seconds += responseTime;
 					if(!socket.isClosed()){
 					  socket.close();
 					}
+					}catch(InterruptedException e){
+						break; // stopped while waiting for the next request
 					}catch(Exception e){
 						try {
                             if(socket != null && !socket.isClosed())
@@ -103,7 +135,10 @@ public class RequestSender implements Runnable {
 		synchronized (this.performanceData) {
 			this.performanceData.num_bytes += total_recv_byte_num;
 			this.performanceData.num_files += total_recv_packet_num;
-			this.performanceData.response_time += total_response_milli_seconds;
+			this.performanceData.response_time += total_response_micro_seconds / 1000;
+			this.performanceData.first_byte.add(firstByte);
+			this.performanceData.last_byte.add(lastByte);
+			this.performanceData.last_byte_intended.add(lastByteIntended);
 		}
 
 	}
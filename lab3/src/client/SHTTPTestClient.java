@@ -9,6 +9,7 @@ import java.util.Scanner;
 import utility.SocketFactory;
 
 import utility.HTTPRequest;
+import utility.LatencyHistogram;
 import utility.PerformanceData;
 
 public class SHTTPTestClient {
@@ -46,6 +47,7 @@ public class SHTTPTestClient {
 		for(int i = 1; i <= config.parallel; i++){
 			RequestSender rs = new RequestSender(i, sf, requestList, performanceData);
 			rs.setVerbose(config.verbose);
+			rs.setRate(config.rate / config.parallel);
 			runnableList.add(rs);
 			threadList.add(new Thread(rs));
 		}
@@ -74,7 +76,7 @@ public class SHTTPTestClient {
 			return ;
 		}		
 		long endTime = System.currentTimeMillis();
-		String report = getStatisticData(performanceData, startTime, endTime);
+		String report = getStatisticData(performanceData, startTime, endTime, config.rate > 0);
 		System.out.println(report);
 	}
 	
@@ -88,16 +90,29 @@ public class SHTTPTestClient {
 		return fileList;
 	}
 	
-	private static String getStatisticData(PerformanceData performanceData, long startTime, long endTime){
+	private static String getStatisticData(PerformanceData performanceData, long startTime, long endTime, boolean openLoop){
 		double interval = (double)(endTime - startTime) / 1000;
 		double transaction_throughput = performanceData.num_files / interval;
 		double data_throughput = performanceData.num_bytes / interval;
-		double avg_response_time = (double)performanceData.response_time / performanceData.num_files;
+		double avg_response_time = performanceData.last_byte.mean() / 1000;
 		String s;
 		s = "Performance:\n";
 		s += "\tTransaction throughput: " + transaction_throughput + " files/s\n";
 		s += "\tData throughput: " + data_throughput / 1024 + " kB/s\n";
-		s += "\tAvg response time: " + avg_response_time + " ms"; 
+		s += "\tAvg response time: " + avg_response_time + " ms\n";
+		s += "\tTime to first byte: " + performanceData.first_byte.summary() + "\n";
+		s += "\tTime to last byte: " + performanceData.last_byte.summary() + "\n";
+		// requests held back by a slow response are missing from the numbers
+		// above (coordinated omission); in open loop they are measured from
+		// when they were due, in closed loop they are filled in assuming the
+		// mean response time as the interval between requests
+		LatencyHistogram corrected;
+		if(openLoop){
+			corrected = performanceData.last_byte_intended;
+		}else{
+			corrected = performanceData.last_byte.corrected((long)performanceData.last_byte.mean());
+		}
+		s += "\tTime to last byte, corrected: " + corrected.summary();
 		return s;
 	}
-}
\ No newline at end of file
+}
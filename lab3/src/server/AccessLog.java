@@ -0,0 +1,88 @@
+package server;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import utility.AsyncAppender;
+import utility.HTTPRequest;
+import utility.HTTPResponse;
+
+/**
+ * Access log in the Common Log Format, one line per response:
+ *
+ *   127.0.0.1 - - [10/Oct/2016:13:55:36 -0400] "GET /doc1.html HTTP/1.1" 200 7582
+ *
+ * Servers record the fields of a response as they send it; the line is put
+ * together and appended to the file by an AsyncAppender.
+ */
+public class AccessLog {
+	private static final DateTimeFormatter CLF_TIME = DateTimeFormatter
+			.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+	private final FileOutputStream file;
+	private final AsyncAppender appender;
+
+	private AccessLog(FileOutputStream file) {
+		this.file = file;
+		this.appender = new AsyncAppender("access", file, 16384);
+	}
+
+	// appends to path
+	public static AccessLog open(String path) throws IOException {
+		return new AccessLog(new FileOutputStream(path, true));
+	}
+
+	// request is null for a request that could not be parsed
+	public void log(InetAddress client, HTTPRequest request, HTTPResponse response) {
+		appender.append(new Entry(client, request, response.getStatusCode(), response.getContentLength()));
+	}
+
+	public void close() {
+		appender.close();
+		if (appender.dropped() > 0) {
+			System.out.println("Access log: " + appender.dropped() + " lines dropped, the disk could not keep up");
+		}
+		try {
+			file.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private static class Entry implements AsyncAppender.Event {
+		final long time = System.currentTimeMillis();
+		final InetAddress client;
+		final HTTPRequest request;
+		final int status;
+		final long bytes; // -1 for a streamed body
+
+		Entry(InetAddress client, HTTPRequest request, int status, long bytes) {
+			this.client = client;
+			this.request = request;
+			this.status = status;
+			this.bytes = bytes;
+		}
+
+		public void format(StringBuilder b) {
+			b.append(client == null ? "-" : client.getHostAddress()).append(" - - [");
+			CLF_TIME.formatTo(Instant.ofEpochMilli(time), b);
+			b.append("] ");
+			if (request == null) {
+				b.append("\"-\"");
+			} else {
+				b.append('"').append(request.getMethod()).append(' ').append(request.getURL()).append(' ')
+						.append(request.getProtocol()).append('"');
+			}
+			b.append(' ').append(status).append(' ');
+			if (bytes > 0) {
+				b.append(bytes);
+			} else {
+				b.append('-'); // CLF writes no body as "-"
+			}
+		}
+	}
+}
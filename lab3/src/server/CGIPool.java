@@ -0,0 +1,277 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import utility.Debug;
+
+/**
+ * Pre-forked pool of python interpreters running CGI scripts, instead of a
+ * new process per request. Each worker runs cgi_worker.py and talks over
+ * its stdin/stdout in frames: a 4-byte length and that many bytes. The
+ * server sends the script path, the worker answers with frames of output
+ * and a terminator, 0 on success, -1 if the script failed.
+ *
+ * Requests wait in a fair queue for an idle worker. The timeout bounds the
+ * time a request waits for a worker plus the time the server spends blocked
+ * on its output; the time the server takes to pass the output on, e.g. to a
+ * slow client, does not count. A worker that runs out of time is killed and
+ * replaced, and a worker is also replaced after maxRequests scripts so leaks
+ * in scripts do not pile up. A replacement that fails to start is retried.
+ */
+public class CGIPool {
+	private static final long RESPAWN_DELAY_MILLIS = 1000;
+
+	private final String script;
+	private final long timeoutMillis;
+	private final int maxRequests;
+	private final ArrayBlockingQueue<Worker> idle;
+	private final ScheduledExecutorService watchdog;
+
+	/** The script did not answer in time, or no worker became free. */
+	public static class TimeoutException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		TimeoutException(String message) {
+			super(message);
+		}
+	}
+
+	private class Worker {
+		final Process process;
+		final DataOutputStream requests;
+		final DataInputStream replies;
+		int served;
+		volatile boolean killed; // by the watchdog, the worker must be replaced
+
+		Worker() throws IOException {
+			ProcessBuilder pb = new ProcessBuilder("python", script);
+			pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+			process = pb.start();
+			requests = new DataOutputStream(process.getOutputStream());
+			replies = new DataInputStream(process.getInputStream());
+		}
+
+		void kill() {
+			killed = true;
+			process.destroyForcibly();
+		}
+	}
+
+	public CGIPool(ServerConfig config) throws IOException {
+		this.script = config.cgiWorker;
+		this.timeoutMillis = config.cgiTimeout * 1000L;
+		this.maxRequests = config.cgiWorkerMaxRequests;
+		if (!new File(script).isFile()) {
+			throw new IOException("CGI worker script not found: " + script);
+		}
+		this.idle = new ArrayBlockingQueue<Worker>(config.cgiWorkers, true);
+		this.watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cgi-watchdog");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for (int i = 0; i < config.cgiWorkers; i++) {
+			idle.add(new Worker());
+		}
+	}
+
+	/**
+	 * Run the script at path. The returned stream yields its output as the
+	 * worker produces it; it is already positioned after the first frame, so
+	 * scripts that fail right away or never answer are reported here rather
+	 * than halfway through a response. Close the stream when done.
+	 */
+	public InputStream execute(String path) throws IOException {
+		long start = System.nanoTime();
+		Worker w;
+		try {
+			w = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted waiting for a CGI worker");
+		}
+		if (w == null) {
+			throw new TimeoutException("no CGI worker free within " + timeoutMillis + " ms");
+		}
+		Output out = new Output(w, TimeUnit.MILLISECONDS.toNanos(timeoutMillis) - (System.nanoTime() - start));
+		try {
+			byte[] path_bytes = path.getBytes(StandardCharsets.UTF_8);
+			w.requests.writeInt(path_bytes.length);
+			w.requests.write(path_bytes);
+			w.requests.flush();
+			out.nextFrame();
+		} catch (IOException e) {
+			out.close();
+			if (w.killed) {
+				throw new TimeoutException("CGI script timed out: " + path);
+			}
+			throw e;
+		}
+		return out;
+	}
+
+	// give back a worker that finished cleanly, replace one that did not
+	private void release(Worker w, boolean clean) {
+		w.served++;
+		if (!clean || w.served >= maxRequests) {
+			w.kill();
+			try {
+				w = new Worker();
+			} catch (IOException e) {
+				// keep serving with the workers left meanwhile
+				System.err.println("CGI worker not replaced, retrying: " + e.getMessage());
+				respawnLater();
+				return;
+			}
+		}
+		idle.offer(w);
+	}
+
+	// start a worker on the watchdog thread, until one starts or the pool shuts down
+	private void respawnLater() {
+		try {
+			watchdog.schedule(new Runnable() {
+				public void run() {
+					try {
+						idle.offer(new Worker());
+					} catch (IOException e) {
+						respawnLater();
+					}
+				}
+			}, RESPAWN_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// shut down
+		}
+	}
+
+	public void shutdown() {
+		watchdog.shutdownNow();
+		Worker w;
+		while ((w = idle.poll()) != null) {
+			w.kill();
+		}
+	}
+
+	// output of one script, frame by frame
+	private class Output extends InputStream {
+		private final Worker worker;
+		private long budgetNanos; // time left to wait for the worker's output
+		private int left; // bytes left in the current frame
+		private boolean done;
+		private boolean released;
+		private final Runnable killer = new Runnable() {
+			public void run() {
+				Debug.DEBUG("CGI worker timed out, killing it", 1);
+				worker.kill(); // the pending read fails and the worker is replaced
+			}
+		};
+
+		Output(Worker worker, long budgetNanos) {
+			this.worker = worker;
+			this.budgetNanos = budgetNanos;
+		}
+
+		/**
+		 * Arm the watchdog for a read that has to wait for the worker, with
+		 * the time left; null if the output is buffered already.
+		 */
+		private ScheduledFuture<?> arm() throws IOException {
+			if (worker.replies.available() > 0) {
+				return null;
+			}
+			if (budgetNanos <= 0) {
+				killer.run();
+				throw new TimeoutException("CGI script timed out");
+			}
+			try {
+				return watchdog.schedule(killer, budgetNanos, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				return null; // shutting down
+			}
+		}
+
+		private void disarm(ScheduledFuture<?> deadline, long start) {
+			if (deadline != null) {
+				deadline.cancel(false);
+				budgetNanos -= System.nanoTime() - start;
+			}
+		}
+
+		// read the next frame header, ends the stream on the terminator
+		void nextFrame() throws IOException {
+			long start = System.nanoTime();
+			ScheduledFuture<?> deadline = arm();
+			int n;
+			try {
+				n = worker.replies.readInt();
+			} finally {
+				disarm(deadline, start);
+			}
+			if (n > 0) {
+				left = n;
+				return;
+			}
+			done = true;
+			finish(true); // a failed script still leaves the worker in a clean state
+			if (n < 0) {
+				throw new IOException("CGI script failed");
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while (left == 0) {
+				if (done) {
+					return -1;
+				}
+				nextFrame();
+			}
+			long start = System.nanoTime();
+			ScheduledFuture<?> deadline = arm();
+			int n;
+			try {
+				n = worker.replies.read(b, off, Math.min(len, left));
+			} finally {
+				disarm(deadline, start);
+			}
+			if (n == -1) {
+				throw new IOException("CGI worker exited");
+			}
+			left -= n;
+			return n;
+		}
+
+		// closing before the end leaves output in the pipe, the worker is replaced
+		@Override
+		public void close() {
+			finish(done && left == 0);
+		}
+
+		private void finish(boolean clean) {
+			if (released) {
+				return;
+			}
+			released = true;
+			release(worker, clean && !worker.killed);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit/miss/eviction counters of a FileCache. LongAdder keeps the counters
+ * off the shared cache line when many threads hit the cache at once.
+ */
+public class CacheStats {
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	void hit() {
+		hits.increment();
+	}
+
+	void miss() {
+		misses.increment();
+	}
+
+	void evict() {
+		evictions.increment();
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	public double hitRate() {
+		long h = hits(), total = h + misses();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Cache: hits %d, misses %d, evictions %d, hit rate %.2f%%", hits(), misses(),
+				evictions(), hitRate() * 100);
+	}
+}
@@ -0,0 +1,141 @@
+package server;
+
+import java.io.File;
+
+import utility.Compression;
+import utility.HTTPResponse;
+
+/**
+ * A file held by the FileCache. Small files keep their content in memory,
+ * large ones only remember where they are and how long they are, and are
+ * sent from disk with FileChannel.transferTo. Either way the header lines
+ * that only depend on the file are encoded once, when it is loaded, and
+ * the validators (Last-Modified, ETag) are kept so that a conditional
+ * request is answered without looking at the file again.
+ *
+ * A compressible file also carries gzip and deflate variants, themselves
+ * in-memory CachedFiles with their own ETag, so it is compressed once per
+ * load rather than once per response.
+ */
+public class CachedFile {
+	private final byte[] content;
+	private final File file;
+	private final long length;
+	private final long lastModified; // milliseconds, whole seconds as headers carry them
+	private final String contentType;
+	private final String encoding; // Content-Encoding of a compressed variant, else null
+	private final boolean vary;
+	private final String etag;
+	private final byte[] header;
+	private final byte[] notModifiedHeader;
+	private final CachedFile gzip, deflate; // null without compressed variants
+
+	public CachedFile(byte[] content, long lastModified, String contentType) {
+		this(content, null, content.length, lastModified, contentType, null, null, null, null);
+	}
+
+	public CachedFile(File file, long length, long lastModified, String contentType) {
+		this(null, file, length, lastModified, contentType, null, null, null, null);
+	}
+
+	private CachedFile(byte[] content, File file, long length, long lastModified, String contentType,
+			String encoding, String etagSuffix, CachedFile gzip, CachedFile deflate) {
+		this.content = content;
+		this.contentType = contentType;
+		this.encoding = encoding;
+		this.file = file;
+		this.length = length;
+		this.lastModified = lastModified / 1000 * 1000;
+		// every representation needs its own ETag, see RFC 7232
+		String tag = Long.toHexString(length) + "-" + Long.toHexString(this.lastModified / 1000);
+		this.etag = "\"" + (etagSuffix == null ? tag : tag + etagSuffix) + "\"";
+		this.vary = encoding != null || gzip != null;
+		this.header = HTTPResponse.encodeEntityHeader(contentType, length, this.lastModified, this.etag,
+				encoding, vary);
+		this.notModifiedHeader = HTTPResponse.encodeNotModifiedHeader(this.lastModified, this.etag, vary);
+		this.gzip = gzip;
+		this.deflate = deflate;
+	}
+
+	/**
+	 * This file with gzip and deflate variants of data, its content, or
+	 * this file itself if compression does not make it smaller.
+	 */
+	public CachedFile withVariants(byte[] data, int level) {
+		Compression c = Compression.of(data, level);
+		if (c == null) {
+			return this;
+		}
+		CachedFile gzip = new CachedFile(c.gzip(), null, c.gzip().length, lastModified, contentType, "gzip", "-gz",
+				null, null);
+		CachedFile deflate = new CachedFile(c.deflate(), null, c.deflate().length, lastModified, contentType,
+				"deflate", "-df", null, null);
+		return new CachedFile(content, file, length, lastModified, contentType, null, null, gzip, deflate);
+	}
+
+	// the variant for a Content-Encoding, null if there is none
+	public CachedFile variant(String encoding) {
+		if ("gzip".equals(encoding)) {
+			return this.gzip;
+		}
+		if ("deflate".equals(encoding)) {
+			return this.deflate;
+		}
+		return null;
+	}
+
+	public boolean hasVariants() {
+		return this.gzip != null;
+	}
+
+	// null for entries served from disk
+	public byte[] getContent() {
+		return this.content;
+	}
+
+	// null for entries held in memory
+	public File getFile() {
+		return this.file;
+	}
+
+	public long getLength() {
+		return this.length;
+	}
+
+	public long getLastModified() {
+		return this.lastModified;
+	}
+
+	public String getContentType() {
+		return this.contentType;
+	}
+
+	public String getETag() {
+		return this.etag;
+	}
+
+	// Server, Content-Type, Content-Length and validator lines, see HTTPResponse.setEntityHeader
+	public byte[] getHeader() {
+		return this.header;
+	}
+
+	// header lines of a 206 answer with bytes first to last, encoded per request
+	public byte[] getPartialHeader(long first, long last) {
+		return HTTPResponse.encodePartialHeader(contentType, first, last, length, lastModified, etag, encoding, vary);
+	}
+
+	// header lines of a 304 answer
+	public byte[] getNotModifiedHeader() {
+		return this.notModifiedHeader;
+	}
+
+	// bytes charged against CacheSize for this entry under the given key
+	public long weight(String path) {
+		long weight = path.length() + this.header.length + this.notModifiedHeader.length + this.etag.length()
+				+ (this.content == null ? 0 : this.content.length);
+		if (this.gzip != null) {
+			weight += this.gzip.weight("") + this.deflate.weight("");
+		}
+		return weight;
+	}
+}
@@ -0,0 +1,128 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK (second chance) cache. Lookups go to a ConcurrentHashMap and only
+ * set a reference bit, so the hit path takes no lock at all. Inserts and
+ * evictions sweep the clock under a single lock; they only happen on a miss,
+ * which already paid for a disk read.
+ */
+public class ClockFileCache implements FileCache {
+	private final ConcurrentHashMap<String, Node> map = new ConcurrentHashMap<String, Node>();
+	private final ArrayDeque<Node> clock = new ArrayDeque<Node>(); // guarded by itself
+	private final long capacity; // in bytes
+	private volatile long size = 0; // written under clock
+	private final CacheStats stats = new CacheStats();
+
+	public ClockFileCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	@Override
+	public CachedFile get(String path) {
+		Node n = map.get(path);
+		if (n == null) {
+			stats.miss();
+			return null;
+		}
+		// avoid dirtying the cache line when the bit is already set
+		if (!n.referenced) {
+			n.referenced = true;
+		}
+		stats.hit();
+		return n.file;
+	}
+
+	@Override
+	public void put(String path, CachedFile file) {
+		Node n = new Node(path, file);
+		if (n.weight > capacity) {
+			return;
+		}
+		synchronized (clock) {
+			Node old = map.put(path, n);
+			if (old != null) {
+				old.removed = true; // lazy delete, skipped by the hand
+				size -= old.weight;
+			}
+			clock.addLast(n);
+			size += n.weight;
+			while (size > capacity) {
+				Node v = clock.pollFirst();
+				if (v == null) {
+					break;
+				}
+				if (v.removed) {
+					continue;
+				}
+				if (v.referenced || v == n) {
+					// second chance
+					v.referenced = false;
+					clock.addLast(v);
+					continue;
+				}
+				map.remove(v.path, v);
+				v.removed = true;
+				size -= v.weight;
+				stats.evict();
+			}
+			// drop lazily deleted nodes once they dominate the clock
+			if (clock.size() > 2 * map.size() + 16) {
+				Iterator<Node> it = clock.iterator();
+				while (it.hasNext()) {
+					if (it.next().removed) {
+						it.remove();
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean remove(String path) {
+		synchronized (clock) {
+			Node old = map.remove(path);
+			if (old != null) {
+				old.removed = true;
+				size -= old.weight;
+			}
+			return old != null;
+		}
+	}
+
+	@Override
+	public void clear() {
+		synchronized (clock) {
+			map.clear();
+			clock.clear();
+			size = 0;
+		}
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public CacheStats stats() {
+		return stats;
+	}
+
+	static class Node {
+		final String path;
+		final CachedFile file;
+		final long weight;
+		volatile boolean referenced = false;
+		boolean removed = false; // guarded by clock
+
+		Node(String path, CachedFile file) {
+			this.path = path;
+			this.file = file;
+			this.weight = file.weight(path);
+		}
+	}
+}
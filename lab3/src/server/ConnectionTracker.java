@@ -0,0 +1,113 @@
+package server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Open client connections of a server, so that stop() can drain them: once
+ * draining, keep-alive ends after the response in progress, connections
+ * waiting for their next request are woken so they close right away, and
+ * whatever is still open when the drain timeout runs out is closed.
+ *
+ * Connections report themselves busy while a request is being answered and
+ * idle while they wait for the next one.
+ */
+public class ConnectionTracker {
+	private final Set<Drainable> open = ConcurrentHashMap.newKeySet();
+	private final Set<Drainable> idle = ConcurrentHashMap.newKeySet();
+	private volatile boolean draining;
+
+	/** A connection as the tracker sees it. */
+	public interface Drainable {
+		// stop waiting for the next request, the connection closes itself
+		void wakeIdle();
+
+		// close at once, the drain timed out
+		void forceClose();
+	}
+
+	// a blocking socket; shutting down its input ends a pending read with end of stream
+	public static Drainable of(final Socket socket) {
+		return new Drainable() {
+			public void wakeIdle() {
+				try {
+					socket.shutdownInput();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+
+			public void forceClose() {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		};
+	}
+
+	public void opened(Drainable c) {
+		open.add(c);
+	}
+
+	public void closed(Drainable c) {
+		idle.remove(c);
+		open.remove(c);
+	}
+
+	// waiting for the next request, woken at once while draining
+	public void idle(Drainable c) {
+		idle.add(c);
+		if (draining) {
+			c.wakeIdle();
+		}
+	}
+
+	public void busy(Drainable c) {
+		idle.remove(c);
+	}
+
+	public boolean isDraining() {
+		return draining;
+	}
+
+	public int size() {
+		return open.size();
+	}
+
+	/**
+	 * Let open connections finish, at most for timeout, then close the rest.
+	 * The server has stopped accepting before. Returns the number of
+	 * connections that finished on their own.
+	 */
+	public int drain(Duration timeout) {
+		long start = System.nanoTime();
+		long deadline = start + timeout.toNanos();
+		int before = open.size();
+		draining = true;
+		// set before the idle connections are read, so idle() sees it for any connection missed here
+		for (Drainable c : idle) {
+			c.wakeIdle();
+		}
+		while (!open.isEmpty() && System.nanoTime() < deadline) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		int forced = 0;
+		for (Drainable c : open) {
+			c.forceClose();
+			open.remove(c);
+			forced++;
+		}
+		int drained = Math.max(0, before - forced);
+		System.out.println("Drained " + drained + " connections in " + (System.nanoTime() - start) / 1000000 + " ms"
+				+ (forced > 0 ? ", closed " + forced + " at the timeout" : ""));
+		return drained;
+	}
+}
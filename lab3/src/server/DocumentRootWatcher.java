@@ -0,0 +1,168 @@
+package server;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utility.Debug;
+
+/**
+ * Keeps the file cache in step with the document root. A WatchService
+ * reports changed files: cached entries of modified files are reloaded,
+ * those of deleted files evicted, so content can be deployed without a
+ * restart. On a restart, prewarm() loads the document root into the cache
+ * before the server accepts connections.
+ *
+ * Cache keys are normalized paths, the document root resolved against the
+ * path below it, as RequestHandler builds them. A request that read a file
+ * as it changed does not cache the old contents, see
+ * RequestHandler.cacheLoaded.
+ */
+public class DocumentRootWatcher implements Runnable {
+	private final Path rootPath;
+	private final FileCache cache;
+	private final WatchService watcher;
+
+	public DocumentRootWatcher(Path root, FileCache cache) throws IOException {
+		this.rootPath = root;
+		this.cache = cache;
+		this.watcher = FileSystems.getDefault().newWatchService();
+		register(rootPath);
+	}
+
+	// watch dir and every directory below it, a WatchService is not recursive
+	private void register(Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				d.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	public void start() {
+		Thread t = new Thread(this, "docroot-watcher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void run() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			Path dir = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					// events were lost, nothing cached can be trusted
+					Debug.DEBUG("document root watch overflow, clearing the cache", 1);
+					RequestHandler.documentRootChanged();
+					cache.clear();
+					continue;
+				}
+				changed(dir.resolve((Path) event.context()), event.kind());
+			}
+			if (!key.reset()) {
+				key.cancel(); // directory is gone
+			}
+		}
+	}
+
+	private void changed(Path path, WatchEvent.Kind<?> kind) {
+		if (kind == ENTRY_CREATE && Files.isDirectory(path)) {
+			try {
+				register(path);
+			} catch (IOException e) {
+				Debug.DEBUG("cannot watch " + path + ": " + e.getMessage(), 1);
+			}
+			return;
+		}
+		String key = keyFor(path);
+		RequestHandler.documentRootChanged(); // loads in flight may have read the old file
+		// only files that were cached are reloaded, others load on demand
+		if (cache.remove(key) && kind == ENTRY_MODIFY) {
+			CachedFile file = RequestHandler.loadFile(key);
+			if (file != null) {
+				cache.put(key, file);
+			}
+			Debug.DEBUG("reloaded " + key, 2);
+		} else {
+			Debug.DEBUG("invalidated " + key, 2);
+		}
+	}
+
+	private String keyFor(Path path) {
+		return path.normalize().toString();
+	}
+
+	/**
+	 * Load files of the document root into the cache on threads threads,
+	 * until budget bytes of cache are used. CGI scripts are skipped.
+	 */
+	public void prewarm(final long budget, int threads) throws IOException {
+		final List<Path> files = new ArrayList<Path>();
+		Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && !f.toString().endsWith(".cgi")) {
+					files.add(f);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		long start = System.currentTimeMillis();
+		final AtomicLong used = new AtomicLong();
+		final AtomicInteger loaded = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for (final Path f : files) {
+			pool.execute(new Runnable() {
+				public void run() {
+					if (used.get() >= budget) {
+						return;
+					}
+					String key = keyFor(f);
+					CachedFile file = RequestHandler.loadFile(key);
+					if (file == null) {
+						return;
+					}
+					if (used.addAndGet(file.weight(key)) > budget) {
+						return; // over budget, leave it to the first request
+					}
+					cache.put(key, file);
+					loaded.incrementAndGet();
+				}
+			});
+		}
+		pool.shutdown();
+		try {
+			pool.awaitTermination(1, TimeUnit.HOURS);
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+		}
+		System.out.println("Prewarmed cache with " + loaded.get() + " of " + files.size() + " files, "
+				+ cache.size() / 1024 + " kB in " + (System.currentTimeMillis() - start) + " ms");
+	}
+}
@@ -0,0 +1,24 @@
+package server;
+
+/**
+ * File cache used by RequestHandler. Implementations must be safe to call
+ * from every service thread without an external lock.
+ */
+public interface FileCache {
+	// return null on miss
+	public CachedFile get(String path);
+
+	// insert or replace an entry, evicting others if the cache is full
+	public void put(String path, CachedFile file);
+
+	// true if there was an entry for path
+	public boolean remove(String path);
+
+	// drop every entry
+	public void clear();
+
+	// bytes currently held, keys included
+	public long size();
+
+	public CacheStats stats();
+}
@@ -2,217 +2,371 @@ package server;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import asyncServer.TimingWheel;
+import utility.BufferPool;
+import utility.Debug;
 import utility.HTTPRequest;
+import utility.HTTPRequestParser;
 import utility.HTTPResponse;
-
+import utility.ResponseWriter;
+
+/**
+ * Single-threaded event loop: one selector, one thread, no handoff. It is
+ * the baseline the multi-reactor servers are measured against.
+ *
+ * A connection reads until its parser has a complete request, then stops
+ * reading and writes the response right away; OP_WRITE is only asked for
+ * when the socket buffer fills, and reading resumes once the response is
+ * out. A slow reader thus holds back only its own pipelined requests.
+ * Past MaxConnections open connections the loop stops accepting, and
+ * further clients wait in the listen backlog. Connections waiting for a
+ * request are closed after KeepAliveTimeout, and so are those that started
+ * a request and did not complete it within KeepAliveTimeout, so clients
+ * trickling partial requests cannot hold the connection slots.
+ *
+ * Responses are generated on the loop thread, so a cache miss or a CGI
+ * script holds up every connection meanwhile.
+ */
 public class HTTPAsynchronousServerSelect implements HTTPServer{
+	private static final int BACKLOG = 1024;
+
 	private Selector selector;
-	private boolean DEBUG = true;
 	private ServerConfig config;
-	private void DEBUG(String s) {
-		if (DEBUG) {
-			System.out.println(s);
-		}
-	}
+	private ServerSocketChannel serverChannel;
+	private SelectionKey acceptKey;
+	private volatile boolean running = true;
+	private int open; // connections, only touched on the selector thread
+	// work handed over by other threads, run on the selector thread
+	private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+	// idle keep-alive connections, expired between selects
+	private final TimingWheel timer = new TimingWheel(100, 512);
+	private final List<SelectionKey> expired = new ArrayList<SelectionKey>();
 
 	public HTTPAsynchronousServerSelect(ServerConfig config) {
 		this.config = config;
 	}
-	
-	public void start(){
-		DEBUG("Listening for connections on port " + config.port);
-	
-		// server socket channel and selector initialization
-		try {
-			// create selector
-			selector = Selector.open();
-
-			// open server socket for accept
-			ServerSocketChannel serverChannel = openServerSocketChannel(config.port);
 
-			// register the server channel to selector
-			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-		} catch (IOException ex) {
-			ex.printStackTrace();
-			System.exit(1);
-		} // end of catch
+	public void start() throws IOException{
+		// server socket channel and selector initialization
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(config.port), BACKLOG);
+		serverChannel.configureBlocking(false);
+		acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		System.out.println("Server started");
+		System.out.println(config);
 
 		// event loop
-		while (true) {
-
-			DEBUG("Enter selection");
+		while (running) {
 			try {
-				// check to see if any events
-				selector.select();
+				// check to see if any events, or until the next timeout
+				selector.select(timer.millisToNextTimeout(System.currentTimeMillis()));
 			} catch (IOException ex) {
 				ex.printStackTrace();
 				break;
 			} // end of catch
 
-			// readKeys is a set of ready events
-			Set<SelectionKey> readyKeys = selector.selectedKeys();
-
-			// create an iterator for the set
-			Iterator<SelectionKey> iterator = readyKeys.iterator();
+			Runnable task;
+			while ((task = pendingTasks.poll()) != null) {
+				task.run();
+			}
+
+			// close connections that stayed idle too long
+			timer.expire(System.currentTimeMillis(), expired);
+			for (SelectionKey key : expired) {
+				if (key.isValid()) {
+					if (Debug.on(2)) {
+						Debug.DEBUG("keep-alive timeout, served " + ((Connection) key.attachment()).served + " requests", 2);
+					}
+					close(key);
+				}
+			}
+			expired.clear();
 
-			// iterate over all events
+			// iterate over the ready events
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
 			while (iterator.hasNext()) {
 
-				SelectionKey key = (SelectionKey) iterator.next();
+				SelectionKey key = iterator.next();
 				iterator.remove();
-
+				if (!key.isValid()) {
+					continue; // closed by a task or a timeout above
+				}
+
+				if (key == acceptKey) {
+					handleAccept();
+					continue;
+				}
 				try {
-					if (key.isAcceptable()) {
-						// a new connection is ready to be accepted
-						handleAccept(key);
-					} // end of isAcceptable
-
 					if (key.isReadable()) {
 						handleRead(key);
 					} // end of isReadable
 
-					if (key.isWritable()) {
-						handleWrite(key);
+					// the read may have closed the connection or written the whole response
+					if (key.isValid() && key.isWritable()) {
+						serve(key);
 					} // end of if isWritable
 				} catch (IOException ex) {
-					key.cancel();
-					try {
-						key.channel().close();
-					} catch (IOException cex) {
+					if (Debug.on(2)) {
+						Debug.DEBUG("connection failed: " + ex.getMessage(), 2);
 					}
+					close(key);
 				} // end of catch
 
 			} // end of while (iterator.hasNext()) {
 
-		} // end of while (true)
-
-	} // end of main
-
-	private  ServerSocketChannel openServerSocketChannel(int port) {
-		ServerSocketChannel serverChannel = null;
+		} // end of while (running)
 
+		for (SelectionKey key : selector.keys()) {
+			close(key);
+		}
 		try {
-			// create server channel
-			serverChannel = ServerSocketChannel.open();
-
-			// extract server socket of the server channel and bind the port
-			// In Java 7 and later, you can bind directly
-			// erverChannel.bind(new InetSocketAddress(port));
-			ServerSocket ss = serverChannel.socket();
-			InetSocketAddress address = new InetSocketAddress(port);
-			ss.bind(address);
-
-			// configure it to be non blocking
-			serverChannel.configureBlocking(false);
+			selector.close();
 		} catch (IOException ex) {
-			ex.printStackTrace();
-			System.exit(1);
-		} // end of catch
-
-		return serverChannel;
-
-	} // end of openServerSocketChannel
-
-	private void handleAccept(SelectionKey key) throws IOException {
+		}
+	} // end of start
 
-		ServerSocketChannel server = (ServerSocketChannel) key.channel();
+	// run task on the selector thread
+	private void invokeLater(Runnable task) {
+		pendingTasks.add(task);
+		selector.wakeup();
+	}
 
-		// extract the ready connection
-		SocketChannel client = server.accept();
-		DEBUG("handleAccept: Accepted connection from " + client);
+	@Override
+	public int stop(Duration drainTimeout) {
+		invokeLater(new Runnable() {
+			public void run() {
+				acceptKey.cancel();
+				try {
+					serverChannel.close();
+				} catch (IOException ex) {
+				}
+			}
+		});
+		int drained = RequestHandler.getConnections().drain(drainTimeout);
+		invokeLater(new Runnable() {
+			public void run() {
+				running = false;
+			}
+		});
+		return drained;
+	}
 
-		// configure the connection to be non-blocking
-		client.configureBlocking(false);
+	// accept every waiting connection, up to MaxConnections
+	private void handleAccept() {
+		while (config.maxConnections <= 0 || open < config.maxConnections) {
+			SocketChannel client;
+			try {
+				client = serverChannel.accept();
+				if (client == null) {
+					return; // backlog is empty
+				}
+			} catch (IOException ex) {
+				// e.g. out of file descriptors; the listener itself is fine
+				if (Debug.on(1)) {
+					Debug.DEBUG("accept failed: " + ex.getMessage(), 1);
+				}
+				return;
+			}
+			try {
+				client.configureBlocking(false);
+				SelectionKey clientKey = client.register(selector, SelectionKey.OP_READ);
+				// a pooled direct buffer; the parser consumes it as bytes arrive
+				Connection conn = new Connection(clientKey);
+				conn.buffer = BufferPool.SHARED.acquire(1024);
+				clientKey.attach(conn);
+				open++;
+				RequestHandler.getConnections().opened(conn);
+				conn.idleTimeout = scheduleIdleTimeout(clientKey);
+				if (Debug.on(3)) {
+					Debug.DEBUG("accepted connection from " + client, 3);
+				}
+			} catch (IOException ex) {
+				try {
+					client.close();
+				} catch (IOException cex) {
+				}
+			}
+		}
+		// full, leave further clients in the backlog until a connection closes
+		acceptKey.interestOps(0);
+	}
 
-		// register the new connection with interests
-		// v1:
-		// SelectionKey clientKey = client.register(selector,
-		// SelectionKey.OP_READ
-		// | SelectionKey.OP_WRITE);
-		/// **********************
-		// v2: we set only READ
-		SelectionKey clientKey = client.register(selector, SelectionKey.OP_READ);
-		// *********************/
+	private void handleRead(SelectionKey key) throws IOException {
+		SocketChannel client = (SocketChannel) key.channel();
+		Connection conn = (Connection) key.attachment();
+		int readBytes = client.read(conn.buffer);
+
+		if (readBytes == -1) {
+			conn.request = conn.parser.finish();
+			if (conn.request == null && !conn.parser.hasError()) {
+				// client closed without a request
+				close(key);
+				return;
+			}
+		} else {
+			boolean started = conn.parser.inProgress();
+			conn.buffer.flip();
+			conn.request = conn.parser.parse(conn.buffer);
+			conn.buffer.compact();
+			if (conn.request == null && !conn.parser.hasError()) {
+				if (!started && conn.parser.inProgress()) {
+					// the first bytes of a request, the rest is due within the timeout
+					conn.cancelIdleTimeout();
+					conn.idleTimeout = scheduleIdleTimeout(key);
+				}
+				return; // request split across reads, wait for the rest
+			}
+		}
+		// a request (or garbage) is complete: stop reading and answer it
+		conn.cancelIdleTimeout();
+		RequestHandler.getConnections().busy(conn);
+		key.interestOps(0);
+		serve(key);
+	}
 
-		// attach a buffer to the new connection
-		// you may want to read up on ByteBuffer.allocateDirect on performance
-		ByteBuffer buffer = ByteBuffer.allocate(1000);
-		clientKey.attach(buffer);
+	/**
+	 * Write responses while the socket takes them: the one in progress and
+	 * then any pipelined request already in the buffer. Leaves the key
+	 * waiting for OP_WRITE if the socket buffer is full, for OP_READ once
+	 * the connection needs the next request.
+	 */
+	private void serve(SelectionKey key) throws IOException {
+		SocketChannel client = (SocketChannel) key.channel();
+		Connection conn = (Connection) key.attachment();
+		while (true) {
+			if (conn.writer == null) {
+				// generate the response once
+				HTTPResponse response;
+				if (conn.request == null) {
+					if (Debug.on(1)) {
+						Debug.DEBUG("bad request, " + conn.parser.getError(), 1);
+					}
+					response = new HTTPResponse(400); // parser error
+					response.setConnection(null, false);
+					conn.keepAlive = false;
+					RequestHandler.logAccess(client.socket().getInetAddress(), null, response);
+				} else {
+					response = RequestHandler.getBufferedResponse(conn.request);
+					conn.keepAlive = RequestHandler.keepAlive(conn.request, response, conn.served);
+					RequestHandler.logAccess(client.socket().getInetAddress(), conn.request, response);
+				}
+				conn.writer = new ResponseWriter(response);
+			}
+			if (!conn.writer.writeTo(client)) {
+				key.interestOps(SelectionKey.OP_WRITE); // socket buffer is full, go on when it drains
+				return;
+			}
+			conn.writer.close();
+			conn.writer = null;
+			if (!conn.keepAlive) {
+				close(key);
+				return;
+			}
+			// persistent connection, a pipelined request may already be buffered
+			conn.served++;
+			conn.parser.reset();
+			conn.buffer.flip();
+			conn.request = conn.parser.parse(conn.buffer);
+			conn.buffer.compact();
+			if (conn.request == null && !conn.parser.hasError()) {
+				break;
+			}
+		}
+		key.interestOps(SelectionKey.OP_READ); // wait for the next request, or the rest of a pipelined one
+		conn.idleTimeout = scheduleIdleTimeout(key);
+		RequestHandler.getConnections().idle(conn);
+	}
 
-	} // end of handleAccept
+	// close key's connection after KeepAliveTimeout unless a whole request arrives, null if it never times out
+	private TimingWheel.Timeout scheduleIdleTimeout(SelectionKey key) {
+		int timeout = RequestHandler.getKeepAliveTimeout();
+		if (timeout <= 0) {
+			return null;
+		}
+		return timer.schedule(key, timeout * 1000L);
+	}
 
-	private void handleRead(SelectionKey key) throws IOException {
-		// a connection is ready to be read
-		DEBUG("-->handleRead");
-		SocketChannel client = (SocketChannel) key.channel();
-		ByteBuffer output = (ByteBuffer) key.attachment();
-		int readBytes = client.read(output);
-
-		/// **********************
-		// v2: update state
-		SelectionKey sk = key.channel().keyFor(selector);
-		int nextState = sk.interestOps();
-
-		// turn off read if readBytes == -1
-		if (readBytes == -1) {// no longer need to read, close read, open write
-			nextState = nextState & ~SelectionKey.OP_READ; // close read
-			nextState = nextState | SelectionKey.OP_WRITE; // add write
-			DEBUG("   State change: client closed; turn off read.");
+	// close the connection and give its buffer back
+	private void close(SelectionKey key) {
+		key.cancel();
+		Object attachment = key.attachment();
+		if (attachment instanceof Connection) {
+			Connection conn = (Connection) attachment;
+			if (conn.buffer == null) {
+				return; // closed already
+			}
+			RequestHandler.getConnections().closed(conn);
+			conn.cancelIdleTimeout();
+			if (conn.writer != null) {
+				conn.writer.close();
+				conn.writer = null;
+			}
+			BufferPool.SHARED.release(conn.buffer);
+			conn.buffer = null;
+			open--;
+			if (acceptKey.isValid() && acceptKey.interestOps() == 0) {
+				acceptKey.interestOps(SelectionKey.OP_ACCEPT); // room again
+			}
+		}
+		try {
+			key.channel().close();
+		} catch (IOException cex) {
 		}
+	}
 
-		sk.interestOps(nextState);
-		// **********************/
+	// per-connection state
+	class Connection implements ConnectionTracker.Drainable {
+		final SelectionKey key;
+		ByteBuffer buffer; // request bytes
+		HTTPRequestParser parser = new HTTPRequestParser();
+		HTTPRequest request; // null until complete
+		boolean keepAlive; // connection stays open after the current response
+		int served; // responses sent on this connection
+		ResponseWriter writer; // response being sent, null before the first write
+		TimingWheel.Timeout idleTimeout; // armed while waiting for a request or the rest of one
+
+		Connection(SelectionKey key) {
+			this.key = key;
+		}
 
-		DEBUG("   Read data from connection " + client + ": read " + readBytes + " byte(s); buffer becomes " + output);
-/*		try {
-			Thread.sleep(5000);
-		} catch (InterruptedException e) {
-		}*/
-		DEBUG("handleRead-->");
+		void cancelIdleTimeout() {
+			if (idleTimeout != null) {
+				idleTimeout.cancel();
+				idleTimeout = null;
+			}
+		}
 
-	} // end of handleRead
+		// called by a draining server on another thread
+		public void wakeIdle() {
+			invokeLater(new Runnable() {
+				public void run() {
+					// a request may have arrived since, that one is still answered
+					if (buffer != null && request == null && writer == null && !parser.inProgress()) {
+						close(key);
+					}
+				}
+			});
+		}
 
-	private void handleWrite(SelectionKey key) throws IOException {
-		DEBUG("-->handleWrite");
-		SocketChannel client = (SocketChannel) key.channel();
-		ByteBuffer output = (ByteBuffer) key.attachment();
-		String s_request = new String(output.array(), StandardCharsets.US_ASCII);
-		HTTPRequest request = HTTPRequest.parse(s_request);
-		HTTPResponse response = RequestHandler.getResponse(request);
-		output.clear();
-		System.out.println(response);
-		output.put(response.getBytes());
-		output.flip();
-		int writeBytes = client.write(output);
-
-		/// ***********
-		// v2: update write state; did not handle how to close after write all
-		SelectionKey sk = key.channel().keyFor(selector);
-		int nextState = sk.interestOps();
-		if (!output.hasRemaining()) { // no response left
-			nextState = nextState & ~SelectionKey.OP_WRITE; // close write
-			client.socket().shutdownOutput();
-			DEBUG("   State change: all data sent; turn off write");
-			sk.interestOps(nextState);
+		public void forceClose() {
+			invokeLater(new Runnable() {
+				public void run() {
+					close(key);
+				}
+			});
 		}
-		// *************/
-		output.compact();
-		DEBUG("   Write data to connection " + client + ": write " + writeBytes + " byte(s); buffer becomes " + output);
-//		try {
-//			Thread.sleep(5000);
-//		} catch (InterruptedException e) {
-//		}
-		DEBUG("handleWrite-->");
-	} // end of handleWrite
+	}
 
 } // end of class
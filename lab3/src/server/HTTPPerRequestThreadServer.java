@@ -3,29 +3,47 @@ package server;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.time.Duration;
 
 public class HTTPPerRequestThreadServer implements HTTPServer {
 	private ServerConfig config;
+	private ServerSocket welcomeSocket;
+	private volatile boolean stopped;
 
 	public HTTPPerRequestThreadServer(ServerConfig config) {
 		// TODO Auto-generated constructor stub
 		this.config = config;
 	}
 
-	@SuppressWarnings("resource")
 	@Override
 	public void start() throws IOException {
 		// TODO Auto-generated method stub
-		ServerSocket welcomeSocket = new ServerSocket(config.port, 10);
+		welcomeSocket = RequestHandler.openWelcomeSocket(config.port, 10);
 		System.out.println("Server started");
 		System.out.println(config);
-		while (true) {
+		while (!stopped) {
 			// accept connection from connection queue
-			Socket connectionSocket = welcomeSocket.accept();
+			Socket connectionSocket;
+			try {
+				connectionSocket = welcomeSocket.accept();
+			} catch (IOException e) {
+				if (stopped) {
+					break; // welcome socket closed by stop()
+				}
+				throw e;
+			}
 			//System.out.println("accepted connection from " + connectionSocket);
 			Thread t = new Thread(new ConnectionSocketHandler(connectionSocket));
 			t.start();
-		} // end of while (true)
+		} // end of while
+	}
+
+	// connection threads end with their connections, there is no pool to stop
+	@Override
+	public int stop(Duration drainTimeout) {
+		stopped = true;
+		RequestHandler.closeQuietly(welcomeSocket);
+		return RequestHandler.getConnections().drain(drainTimeout);
 	}
 	class ConnectionSocketHandler implements Runnable {
 		Socket connectionSocket;
@@ -2,24 +2,44 @@ package server;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.time.Duration;
+
 import utility.Debug;
 public class HTTPSequenceServer implements HTTPServer {
 	private ServerConfig config;
+	private ServerSocket welcomeSocket;
+	private volatile boolean stopped;
 	public HTTPSequenceServer(ServerConfig config) {
 		this.config = config;
 	}
 
-	@SuppressWarnings("resource")
 	public void start() throws IOException {
-		ServerSocket welcomeSocket = new ServerSocket(config.port, 50);
+		welcomeSocket = RequestHandler.openWelcomeSocket(config.port, 50);
 		System.out.println("Server started");
 		System.out.println(config);
-		while (true) {
+		while (!stopped) {
 			// accept connection from connection queue
-			Socket connectionSocket = welcomeSocket.accept();
-			Debug.DEBUG("accepted connection from " + connectionSocket, 2);
+			Socket connectionSocket;
+			try {
+				connectionSocket = welcomeSocket.accept();
+			} catch (IOException e) {
+				if (stopped) {
+					break; // welcome socket closed by stop()
+				}
+				throw e;
+			}
+			if (Debug.on(2)) {
+				Debug.DEBUG("accepted connection from " + connectionSocket, 2);
+			}
 			RequestHandler.HandleConnectionSocket(connectionSocket);
-		} // end of while (true)
+		} // end of while
 		
 	}
+
+	// the connection being served, if any, is the only one to drain
+	public int stop(Duration drainTimeout) {
+		stopped = true;
+		RequestHandler.closeQuietly(welcomeSocket);
+		return RequestHandler.getConnections().drain(drainTimeout);
+	}
 }
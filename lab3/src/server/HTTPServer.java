@@ -1,7 +1,17 @@
 package server;
 
 import java.io.IOException;
+import java.time.Duration;
 
 public interface HTTPServer {
 	void start() throws IOException;
+
+	/**
+	 * Stop accepting connections and let the open ones finish: requests in
+	 * progress are answered with Connection: close, idle keep-alive
+	 * connections are closed, and what is still open after drainTimeout is
+	 * closed. Threads and selectors of the server are released afterwards.
+	 * Returns the number of connections that finished on their own.
+	 */
+	int stop(Duration drainTimeout);
 }
@@ -1,15 +1,34 @@
 package server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.time.Duration;
 
 import utility.Debug;
 
+/**
+ * Service threads accept connections themselves and serve them. With
+ * AcceptMode shared the threads call accept() on one welcome socket
+ * concurrently. With AcceptMode reuseport every thread owns a listening
+ * socket bound to the same port with SO_REUSEPORT, and the kernel spreads
+ * new connections over them, so threads neither wake up together for one
+ * connection nor contend on one accept queue.
+ *
+ * The kernel picks a socket by hashing the connection, not by which thread
+ * is free: under reuseport a connection waits for its own thread even when
+ * others are idle, and connections still queued on a socket are reset when
+ * it closes on stop(). It suits short connections; shared is the default.
+ */
 public class HTTPThreadPoolCompetingWelcomSocketServer implements HTTPServer {
 	ServerConfig config;
-	ServerSocket welcomeSocket;
+	ServerSocket[] welcomeSockets; // one per thread with SO_REUSEPORT, else one shared
 	Thread threads[];
+	private volatile boolean stopped;
 
 	public HTTPThreadPoolCompetingWelcomSocketServer(ServerConfig config) {
 		// TODO Auto-generated constructor stub
@@ -18,17 +37,98 @@ public class HTTPThreadPoolCompetingWelcomSocketServer implements HTTPServer {
 
 	@Override
 	public void start() throws IOException {
-		// TODO Auto-generated method stub
-		this.welcomeSocket = new ServerSocket(config.port, 50);
+		threads = new ServiceThread[config.threadPoolSize];
+		ServerSocket[] sockets = null;
+		if (config.acceptMode.equals("reuseport")) {
+			sockets = openReusePortSockets(config.port, threads.length);
+			if (sockets == null) {
+				System.out.println("SO_REUSEPORT is not supported here, threads share one welcome socket");
+			}
+		}
+		if (sockets == null) {
+			sockets = new ServerSocket[] { RequestHandler.openWelcomeSocket(config.port, 50) };
+		}
+		this.welcomeSockets = sockets;
 		System.out.println("Server started");
 		System.out.println(config);
-		threads = new ServiceThread[config.threadPoolSize];
 		for (int i = 0; i < threads.length; i++) {
-			threads[i] = new ServiceThread(this.welcomeSocket);
+			threads[i] = new ServiceThread(sockets[i % sockets.length]);
 			threads[i].start();
 		}
 	}
 
+	/**
+	 * n welcome sockets on port with SO_REUSEPORT, null if the option is
+	 * not supported. The option exists from Java 9 on and the code is
+	 * compiled for Java 8, so it is looked up by name.
+	 */
+	@SuppressWarnings("unchecked")
+	private static ServerSocket[] openReusePortSockets(int port, int n) throws IOException {
+		SocketOption<Boolean> reusePort;
+		try {
+			reusePort = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+		ServerSocket[] sockets = new ServerSocket[n];
+		boolean opened = false;
+		try {
+			for (int i = 0; i < n; i++) {
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				sockets[i] = channel.socket();
+				if (!channel.supportedOptions().contains(reusePort)) {
+					return null;
+				}
+				channel.setOption(reusePort, true);
+				sockets[i].bind(new InetSocketAddress(port), 50);
+			}
+			opened = true;
+			return sockets;
+		} finally {
+			if (!opened) {
+				// the sockets opened so far would hold the port
+				for (ServerSocket s : sockets) {
+					RequestHandler.closeQuietly(s);
+				}
+			}
+		}
+	}
+
+	@Override
+	public int stop(Duration drainTimeout) {
+		stopped = true;
+		if (welcomeSockets != null) { // null if start() failed or never ran
+			for (ServerSocket s : welcomeSockets) {
+				RequestHandler.closeQuietly(s);
+			}
+		}
+		int drained = RequestHandler.getConnections().drain(drainTimeout);
+		joinAll(threads, drainTimeout);
+		return drained;
+	}
+
+	// wait a little for service threads, they are done once their connection is
+	static void joinAll(Thread[] threads, Duration timeout) {
+		if (threads == null) {
+			return;
+		}
+		long deadline = System.currentTimeMillis() + Math.max(100, timeout.toMillis());
+		for (Thread t : threads) {
+			if (t == null) {
+				continue; // never started
+			}
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) {
+				return;
+			}
+			try {
+				t.join(left);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
 	class ServiceThread extends Thread {
 		ServerSocket welcomeSocket;
 
@@ -39,21 +139,24 @@ public class HTTPThreadPoolCompetingWelcomSocketServer implements HTTPServer {
 
 		@Override
 		public void run() {
-			// TODO Auto-generated method stub
-			// create read stream to get input
-			// BufferedReader inFromClient = new BufferedReader(new
-			// InputStreamReader(connectionSocket.getInputStream()));
-			while (true) {
-				synchronized (welcomeSocket) {
-					try {
-						//Debug.DEBUG("waiting for new connection");
-						Socket connectionSocket = welcomeSocket.accept();
-						RequestHandler.HandleConnectionSocket(connectionSocket);
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+			// accept() is safe to call from several threads; the connection
+			// is served without holding anything, so threads work in parallel
+			while (!stopped) {
+				Socket connectionSocket;
+				try {
+					//Debug.DEBUG("waiting for new connection");
+					connectionSocket = welcomeSocket.accept();
+				} catch (IOException e) {
+					if (stopped) {
+						return; // welcome socket closed by stop()
 					}
+					e.printStackTrace();
+					continue;
+				}
+				if (Debug.on(3)) {
+					Debug.DEBUG("accepted connection from " + connectionSocket + " on " + getName(), 3);
 				}
+				RequestHandler.HandleConnectionSocket(connectionSocket);
 			}
 
 		}
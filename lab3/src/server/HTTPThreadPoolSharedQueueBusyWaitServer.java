@@ -3,70 +3,170 @@ package server;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.time.Duration;
 import java.util.List;
 import java.util.Vector;
+import java.util.function.IntSupplier;
 
+import server.HTTPThreadPoolSharedQueueSuspensionServer.Queued;
+
+/**
+ * Service threads poll a shared queue of accepted connections. With
+ * QueueWait spin they poll it in a loop under its lock, never sleeping;
+ * with QueueWait adaptive they spin briefly, then yield, then park, see
+ * SpinParkQueue.
+ */
 public class HTTPThreadPoolSharedQueueBusyWaitServer implements HTTPServer {
 	private ServerConfig config;
 	private ServerSocket welcomeSocket;
 	private ServiceThread[] threads;
-	private List<Socket> connSockPool;
+	private List<Queued> connSockPool; // QueueWait spin
+	private SpinParkQueue<Queued> handoff; // QueueWait adaptive
+	private IntSupplier depth;
+	private QueueStats stats;
+	private volatile boolean stopped;
 	public HTTPThreadPoolSharedQueueBusyWaitServer(ServerConfig config) throws IOException {
 		this.config = config;
-		this.welcomeSocket = new ServerSocket(this.config.port, 50);
+		this.welcomeSocket = RequestHandler.openWelcomeSocket(this.config.port, 50);
 		System.out.println("Server started");
 		System.out.println(this.config);
 		this.threads = new ServiceThread[this.config.threadPoolSize];
-		this.connSockPool = new Vector<Socket>();
+		this.stats = new QueueStats(config.queueWait);
+		// connections accepted but not picked up by a service thread yet
+		if (config.queueWait.equals("adaptive")) {
+			final SpinParkQueue<Queued> queue = this.handoff = new SpinParkQueue<Queued>();
+			this.depth = new IntSupplier() {
+				public int getAsInt() {
+					return queue.size();
+				}
+			};
+		} else {
+			final List<Queued> queue = this.connSockPool = new Vector<Queued>();
+			this.depth = new IntSupplier() {
+				public int getAsInt() {
+					return queue.size();
+				}
+			};
+		}
+		RequestHandler.getHealthMonitor().setQueue(depth);
 		for (int i = 0; i < threads.length; i++) {
-			threads[i] = new ServiceThread(this.connSockPool);
+			threads[i] = new ServiceThread();
 			threads[i].start();
 		}
 	}
 	@Override
 	public void start() throws IOException {
-	    while (true) {
+	    while (!stopped) {
 	        try {
 		        // accept connection from connection queue
 		        Socket connSock = welcomeSocket.accept();
-		        //System.out.println("Main thread retrieve connection from " 
+		        //System.out.println("Main thread retrieve connection from "
 				//                   + connSock);
 		        // how to assign to an idle thread?
+		        if (handoff != null) {
+		        	handoff.offer(new Queued(connSock));
+		        	continue;
+		        }
 		        synchronized (connSockPool) {
-		            connSockPool.add(connSock);
+		            connSockPool.add(new Queued(connSock));
 		        } // end of sync
 	        } catch (Exception e) {
-	        	System.out.println("server run failed.");
+	        	if (!stopped) {
+	        		System.out.println("server run failed.");
+	        	}
 	        } // end of catch
 	    } // end of loop
 	}
-	class ServiceThread extends Thread {
-		List<Socket> connSockPool;
 
-		public ServiceThread(List<Socket> connSockPool) {
-			// TODO Auto-generated constructor stub
-			this.connSockPool = connSockPool;
+	// connections already queued are served before the drain
+	@Override
+	public int stop(Duration drainTimeout) {
+		stopped = true;
+		RequestHandler.closeQuietly(welcomeSocket);
+		long deadline = System.nanoTime() + drainTimeout.toNanos();
+		HTTPThreadPoolSharedQueueSuspensionServer.awaitEmpty(depth, deadline);
+		int drained = RequestHandler.getConnections().drain(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+		if (handoff != null) {
+			Queued q;
+			while ((q = handoff.poll()) != null) {
+				closeQuietly(q.socket);
+			}
+			// parked service threads wait for an offer
+			for (ServiceThread t : threads) {
+				t.interrupt();
+			}
+		} else {
+			closeQueued(connSockPool);
+		}
+		HTTPThreadPoolCompetingWelcomSocketServer.joinAll(threads, drainTimeout);
+		if (handoff != null) {
+			System.out.println(handoff);
+		}
+		System.out.println(stats);
+		return drained;
+	}
+	// connections nobody picked up in time
+	static void closeQueued(List<Queued> queue) {
+		synchronized (queue) {
+			for (Queued q : queue) {
+				closeQuietly(q.socket);
+			}
+			queue.clear();
+		}
+	}
+
+	private static void closeQuietly(Socket s) {
+		try {
+			s.close();
+		} catch (IOException e) {
 		}
+	}
+
+	class ServiceThread extends Thread {
 
 		@Override
 		public void run() {
 		    while (true) {
 		        // get a new request connection
-		        Socket s = null;
+		        long cpu = QueueStats.cpuTime();
+		        Queued q = null;
+		        try {
+		        	q = handoff != null ? takeParking() : takeSpinning();
+		        } finally {
+		        	stats.waited(cpu, q == null ? -1 : q.enqueued);
+		        }
+		        if (q == null) {
+		        	return; // stopped, nothing left to serve
+		        }
+		        	RequestHandler.HandleConnectionSocket(q.socket);
+
+		    } // end while(true)
+		}
+
+		private Queued takeParking() {
+			try {
+				return handoff.take();
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
 
-		        while (s == null) {
-			        synchronized (connSockPool) {         
+		private Queued takeSpinning() {
+		        Queued q = null;
+
+		        while (q == null) {
+			        synchronized (connSockPool) {
 			            if (!connSockPool.isEmpty()) {
 				           // remove the first request
-				           s = (Socket) connSockPool.remove(0); 
-	//			           System.out.println("Thread " + this 
+				           q = connSockPool.remove(0);
+	//			           System.out.println("Thread " + this
 	//					       + " process request " + s);
+			            } else if (stopped) {
+			            	return null;
 			            } // end if
 			        } // end of sync
 		        } // end while
-		        	RequestHandler.HandleConnectionSocket(s);
-				
-		    } // end while(true)
+		        return q;
 		}
 	}
 }
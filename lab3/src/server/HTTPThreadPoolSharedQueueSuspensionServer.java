@@ -1,84 +1,237 @@
 package server;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.List;
-import java.util.Vector;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
 
 import utility.Debug;
+import utility.HTTPResponse;
 
+/**
+ * Service threads take accepted connections from a bounded queue. The
+ * queue wakes a single waiting thread per connection instead of all of
+ * them, and when it is full the QueueFullPolicy applies: "reject" answers
+ * the connection with 503 right away, "block" stops accepting until a
+ * thread frees a slot, leaving further clients in the listen backlog.
+ *
+ * The time connections spend in the queue is recorded, it tells whether
+ * the pool is sized right, along with the CPU time threads spend waiting
+ * (see QueueStats).
+ */
 public class HTTPThreadPoolSharedQueueSuspensionServer implements HTTPServer {
+	// how long a rejected client gets to finish sending its request
+	private static final int REJECT_LINGER_MILLIS = 1000;
+	// how often a blocked accept thread checks whether the server stopped
+	private static final int BLOCK_POLL_MILLIS = 100;
+
 	private ServerConfig config;
 	private ServerSocket welcomeSocket;
 	private ServiceThread[] threads;
-	private List<Socket> connSockPool;
+	private ArrayBlockingQueue<Queued> connSockPool;
+	private IntSupplier depth;
+	private volatile boolean stopped;
+	private final QueueStats stats = new QueueStats("suspend");
+	private final LongAdder rejected = new LongAdder();
+	private ThreadPoolExecutor rejecter; // answers rejected connections off the accept thread
+
+	// an accepted connection and when it was queued
+	static class Queued {
+		final Socket socket;
+		final long enqueued = System.nanoTime();
+
+		Queued(Socket socket) {
+			this.socket = socket;
+		}
+	}
+
 	public HTTPThreadPoolSharedQueueSuspensionServer(ServerConfig config) throws IOException {
 		this.config = config;
-		this.welcomeSocket = new ServerSocket(this.config.port, 50);
+		this.welcomeSocket = RequestHandler.openWelcomeSocket(this.config.port, 50);
 		System.out.println("Server started");
 		System.out.println(config);
 		this.threads = new ServiceThread[config.threadPoolSize];
-		this.connSockPool = new Vector<Socket>();
+		this.connSockPool = new ArrayBlockingQueue<Queued>(config.connectionQueueSize);
+		// connections accepted but not picked up by a service thread yet
+		final ArrayBlockingQueue<Queued> queue = this.connSockPool;
+		this.depth = new IntSupplier() {
+			public int getAsInt() {
+				return queue.size();
+			}
+		};
+		RequestHandler.getHealthMonitor().setQueue(depth);
+		if (config.queueFullPolicy.equals("reject")) {
+			this.rejecter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(config.connectionQueueSize), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "rejecter");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
 		for (int i = 0; i < threads.length; i++) {
-			threads[i] = new ServiceThread(this.connSockPool);
+			threads[i] = new ServiceThread();
 			threads[i].start();
 		}
 	}
 
 	@Override
 	public void start() throws IOException {
-	    while (true) {
+		boolean block = config.queueFullPolicy.equals("block");
+	    while (!stopped) {
 	        try {
 		        // accept connection from connection queue
 		        Socket connSock = welcomeSocket.accept();
-		        //System.out.println("Main thread retrieve connection from " 
-				//                   + connSock);
-
-		        // how to assign to an idle thread?
-		        synchronized (connSockPool) {
-		            connSockPool.add(connSock);
-		            connSockPool.notifyAll();
-		        } // end of sync
+		        Queued q = new Queued(connSock);
+		        if (block) {
+		        	// accepting waits for a free slot, until the server stops
+		        	while (!connSockPool.offer(q, BLOCK_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+		        		if (stopped) {
+		        			closeQuietly(connSock);
+		        			break;
+		        		}
+		        	}
+		        } else if (!connSockPool.offer(q)) {
+		        	reject(connSock);
+		        }
+	        } catch (InterruptedException e) {
+	        	break;
 	        } catch (Exception e) {
-	        	System.out.println("server run failed.");
+	        	if (!stopped) {
+	        		System.out.println("server run failed.");
+	        	}
 	        } // end of catch
-	    } // end of loop	
+	    } // end of loop
 	}
-	class ServiceThread extends Thread {
-		List<Socket> connSockPool;
 
-		public ServiceThread(List<Socket> connSockPool) {
-			// TODO Auto-generated constructor stub
-			this.connSockPool = connSockPool;
+	/**
+	 * Every service thread is busy and the queue is full: answer 503 on the
+	 * rejecter thread, so the accept thread never waits on the client. If
+	 * the rejecter falls behind too, the connection is just closed.
+	 */
+	private void reject(final Socket socket) {
+		rejected.increment();
+		try {
+			rejecter.execute(new Runnable() {
+				public void run() {
+					answerUnavailable(socket);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			closeQuietly(socket);
 		}
+	}
+
+	/**
+	 * Send 503 and close. The request is read and discarded for up to
+	 * REJECT_LINGER_MILLIS first: closing with unread input resets the
+	 * connection, and the reset can destroy the 503 before the client reads
+	 * it.
+	 */
+	private static void answerUnavailable(Socket socket) {
+		try {
+			HTTPResponse response = new HTTPResponse(503);
+			response.setConnection(null, false);
+			RequestHandler.sendResponse(socket, response);
+			socket.shutdownOutput();
+			long deadline = System.currentTimeMillis() + REJECT_LINGER_MILLIS;
+			InputStream in = socket.getInputStream();
+			byte[] discard = new byte[4096];
+			long left;
+			while ((left = deadline - System.currentTimeMillis()) > 0) {
+				socket.setSoTimeout((int) left);
+				if (in.read(discard) == -1) {
+					break; // client closed its side
+				}
+			}
+		} catch (SocketTimeoutException e) {
+			// client still sending, give up on it
+		} catch (IOException e) {
+			// client is gone already
+		} finally {
+			closeQuietly(socket);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	// connections already queued are served before the drain
+	@Override
+	public int stop(Duration drainTimeout) {
+		stopped = true;
+		RequestHandler.closeQuietly(welcomeSocket);
+		long deadline = System.nanoTime() + drainTimeout.toNanos();
+		awaitEmpty(depth, deadline);
+		int drained = RequestHandler.getConnections().drain(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+		Queued q;
+		while ((q = connSockPool.poll()) != null) {
+			closeQuietly(q.socket); // nobody picked it up in time
+		}
+		if (rejecter != null) {
+			rejecter.shutdown();
+		}
+		// idle service threads wait in take()
+		for (ServiceThread t : threads) {
+			t.interrupt();
+		}
+		HTTPThreadPoolCompetingWelcomSocketServer.joinAll(threads, drainTimeout);
+		System.out.println(this);
+		return drained;
+	}
+
+	// wait until service threads took every queued connection, or until deadline (System.nanoTime)
+	static void awaitEmpty(IntSupplier depth, long deadline) {
+		while (depth.getAsInt() > 0 && System.nanoTime() < deadline) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Queue: capacity %d, depth %d, full policy %s, rejected %d\n%s",
+				config.connectionQueueSize, connSockPool.size(), config.queueFullPolicy, rejected.sum(), stats);
+	}
+
+	class ServiceThread extends Thread {
 
 		@Override
 		public void run() {
-	    	
+
 		    while (true) {
-		        // get a new request connection
-		        Socket s = null;
-			    synchronized (connSockPool) {
-		        	while (connSockPool.isEmpty()) {
-			            try {
-							connSockPool.wait();
-						} catch (InterruptedException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-			        }
-				    // remove the first request
-				    s = (Socket) connSockPool.remove(0); 
-//				    Debug.DEBUG("Thread " + this 
-//						       + " process request " + s, 3);
-			    } // end if
-			     // end of sync
-		         // end while
-		        
-		        	if(s != null)
-		        		RequestHandler.HandleConnectionSocket(s);
-				
+		        // get a new request connection, only one waiting thread is woken per connection
+		        long cpu = QueueStats.cpuTime();
+		        Queued q = null;
+		        try {
+		        	q = connSockPool.take();
+		        } catch (InterruptedException e) {
+		        	return; // stopped
+		        } finally {
+		        	stats.waited(cpu, q == null ? -1 : q.enqueued);
+		        }
+		        if (Debug.on(3)) {
+		        	Debug.DEBUG("connection waited " + (System.nanoTime() - q.enqueued) / 1000 + " us in the queue", 3);
+		        }
+		        RequestHandler.HandleConnectionSocket(q.socket);
+
 		    } // end while(true)
 
 		}
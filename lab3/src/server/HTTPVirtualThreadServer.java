@@ -0,0 +1,117 @@
+package server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import utility.Debug;
+
+/**
+ * One virtual thread per connection, running the same blocking code as the
+ * thread pool servers. A virtual thread blocked on a socket releases its
+ * carrier, so tens of thousands of mostly idle keep-alive connections cost
+ * memory rather than platform threads.
+ *
+ * Blocking on the request path was checked for pinning: sockets are
+ * channel based (see RequestHandler.openWelcomeSocket) and unmount while
+ * waiting, file reads go through Files and FileChannel, and the monitors
+ * on the path (file cache segments, health stripes) are held only for
+ * in-memory work. CGI output comes from a process pipe whose stream
+ * synchronizes internally and would pin the carrier, so scripts run and
+ * their output is buffered on CGIWorkers platform threads; the virtual
+ * thread only waits for the bytes.
+ *
+ * Virtual threads need Java 21. On older runtimes the server falls back to
+ * a cached pool of platform threads and says so at startup.
+ */
+public class HTTPVirtualThreadServer implements HTTPServer {
+	private static final int BACKLOG = 1024; // connections arrive faster than one accept loop on a burst
+
+	private ServerConfig config;
+	private ServerSocket welcomeSocket;
+	private ExecutorService executor;
+	private ExecutorService cgiReader; // platform threads, one per CGI worker
+	private volatile boolean stopped;
+
+	public HTTPVirtualThreadServer(ServerConfig config) {
+		this.config = config;
+	}
+
+	@Override
+	public void start() throws IOException {
+		executor = virtualThreadPerTaskExecutor();
+		if (executor == null) {
+			System.out.println("Virtual threads need Java 21, running on " + System.getProperty("java.version")
+					+ ": using platform threads");
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "connection");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		cgiReader = Executors.newFixedThreadPool(Math.max(1, config.cgiWorkers), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cgi-reader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		RequestHandler.setCGIReader(cgiReader);
+		welcomeSocket = RequestHandler.openWelcomeSocket(config.port, BACKLOG);
+		System.out.println("Server started");
+		System.out.println(config);
+		while (!stopped) {
+			final Socket connectionSocket;
+			try {
+				connectionSocket = welcomeSocket.accept();
+			} catch (IOException e) {
+				if (stopped) {
+					break; // welcome socket closed by stop()
+				}
+				throw e;
+			}
+			if (Debug.on(2)) {
+				Debug.DEBUG("accepted connection from " + connectionSocket, 2);
+			}
+			executor.execute(new Runnable() {
+				public void run() {
+					RequestHandler.HandleConnectionSocket(connectionSocket);
+				}
+			});
+		}
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor(), null before Java 21; the code is compiled for Java 8
+	private static ExecutorService virtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public int stop(Duration drainTimeout) {
+		stopped = true;
+		RequestHandler.closeQuietly(welcomeSocket);
+		int drained = RequestHandler.getConnections().drain(drainTimeout);
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+			}
+		}
+		if (cgiReader != null) {
+			cgiReader.shutdown();
+		}
+		return drained;
+	}
+}
@@ -0,0 +1,118 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import utility.HTTPResponse;
+import utility.LatencyHistogram;
+
+/**
+ * Load signals behind /healthy: requests in flight, connections or tasks
+ * waiting in the server's queue, p99 response time and the rate limiter.
+ *
+ * Recording is cheap on the request path: a LongAdder and one of a few
+ * striped histograms, picked by thread id. The report is evaluated at most
+ * once a second, however often the load balancer polls, and covers the
+ * requests since the previous evaluation.
+ */
+public class HealthMonitor {
+	private static final long EVALUATE_NANOS = 1000000000L;
+
+	private final LongAdder inFlight = new LongAdder();
+	private final LatencyHistogram[] stripes;
+	private final LatencyHistogram window = new LatencyHistogram(); // merged stripes, guarded by this
+	private final TokenBucket limiter; // null without RateLimit
+	private final int maxQueue; // 0: queue depth does not matter
+	private final long maxP99Micros; // 0: latency does not matter
+	private volatile IntSupplier queue; // null for servers without a queue
+	private volatile Report report;
+
+	private static class Report {
+		final long evaluated; // System.nanoTime()
+		final int status;
+		final byte[] body;
+
+		Report(long evaluated, int status, byte[] body) {
+			this.evaluated = evaluated;
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	public HealthMonitor(ServerConfig config) {
+		int n = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+		stripes = new LatencyHistogram[n];
+		for (int i = 0; i < n; i++) {
+			stripes[i] = new LatencyHistogram();
+		}
+		limiter = config.rateLimit > 0
+				? new TokenBucket(config.rateLimit, config.rateLimitBurst > 0 ? config.rateLimitBurst : config.rateLimit)
+				: null;
+		maxQueue = config.healthMaxQueue;
+		maxP99Micros = config.healthMaxLatency * 1000L;
+	}
+
+	// the server's queue, read when /healthy is evaluated
+	public void setQueue(IntSupplier queue) {
+		this.queue = queue;
+	}
+
+	// false if the request is over the configured rate
+	public boolean admit() {
+		return limiter == null || limiter.tryAcquire();
+	}
+
+	// call before generating a response, pass the result to end()
+	public long begin() {
+		inFlight.increment();
+		return System.nanoTime();
+	}
+
+	public void end(long begin) {
+		long micros = (System.nanoTime() - begin) / 1000;
+		inFlight.decrement();
+		LatencyHistogram h = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+		synchronized (h) {
+			h.record(micros);
+		}
+	}
+
+	// response for /healthy: 200 with the signals, 503 if the server is overloaded
+	public HTTPResponse response() {
+		Report r = report;
+		long now = System.nanoTime();
+		if (r == null || now - r.evaluated > EVALUATE_NANOS) {
+			r = evaluate(now);
+		}
+		// a fresh response, the connection handling sets its own headers
+		return new HTTPResponse(r.status, r.body);
+	}
+
+	private synchronized Report evaluate(long now) {
+		Report r = report;
+		if (r != null && now - r.evaluated <= EVALUATE_NANOS) {
+			return r; // another poller was faster
+		}
+		window.reset();
+		for (LatencyHistogram h : stripes) {
+			synchronized (h) {
+				window.add(h);
+				h.reset();
+			}
+		}
+		IntSupplier q = queue;
+		int depth = q == null ? 0 : q.getAsInt();
+		long p99 = window.percentile(99);
+		long tokens = limiter == null ? -1 : limiter.available();
+		boolean healthy = (maxQueue <= 0 || depth <= maxQueue) && (maxP99Micros <= 0 || p99 <= maxP99Micros)
+				&& tokens != 0;
+
+		String body = String.format("%s\nin-flight %d\nqueue %d\np99 %.3f ms\nrequests %d\ntokens %s\n",
+				healthy ? "healthy" : "overloaded", inFlight.sum(), depth, p99 / 1000.0, window.count(),
+				tokens < 0 ? "unlimited" : String.valueOf(tokens));
+		r = new Report(now, healthy ? 200 : 503, body.getBytes(StandardCharsets.US_ASCII));
+		report = r;
+		return r;
+	}
+}
@@ -0,0 +1,141 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-striped LRU cache. Keys are spread over a power-of-two number of
+ * segments, each an access-ordered LinkedHashMap behind its own monitor, so
+ * threads only contend when they touch the same segment. The byte budget is
+ * global; when it is exceeded the least recently used entries of the
+ * inserting segment are evicted first, then those of its neighbours, which
+ * gives an approximate LRU without a global lock.
+ */
+public class LRUFileCache implements FileCache {
+	private final Segment[] segments;
+	private final int mask;
+	private final long capacity; // in bytes
+	private final AtomicLong size = new AtomicLong(0);
+	private final CacheStats stats = new CacheStats();
+
+	public LRUFileCache(long capacity, int concurrency) {
+		int n = 1;
+		while (n < concurrency) {
+			n <<= 1;
+		}
+		this.capacity = capacity;
+		this.mask = n - 1;
+		this.segments = new Segment[n];
+		for (int i = 0; i < n; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	private int indexFor(String path) {
+		int h = path.hashCode();
+		h ^= (h >>> 16);
+		return h & mask;
+	}
+
+	@Override
+	public CachedFile get(String path) {
+		Segment s = segments[indexFor(path)];
+		CachedFile file;
+		synchronized (s) {
+			file = s.map.get(path); // moves the entry to the MRU end
+		}
+		if (file == null) {
+			stats.miss();
+		} else {
+			stats.hit();
+		}
+		return file;
+	}
+
+	@Override
+	public void put(String path, CachedFile file) {
+		long weight = file.weight(path);
+		if (weight > capacity) {
+			return; // would evict everything and still not fit
+		}
+		int idx = indexFor(path);
+		Segment s = segments[idx];
+		synchronized (s) {
+			CachedFile old = s.map.put(path, file);
+			long delta = old == null ? weight : weight - old.weight(path);
+			size.addAndGet(delta);
+		}
+		if (size.get() > capacity) {
+			evict(idx, path);
+		}
+	}
+
+	@Override
+	public boolean remove(String path) {
+		Segment s = segments[indexFor(path)];
+		synchronized (s) {
+			CachedFile old = s.map.remove(path);
+			if (old != null) {
+				size.addAndGet(-old.weight(path));
+			}
+			return old != null;
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (Segment s : segments) {
+			synchronized (s) {
+				for (Map.Entry<String, CachedFile> e : s.map.entrySet()) {
+					size.addAndGet(-e.getValue().weight(e.getKey()));
+				}
+				s.map.clear();
+			}
+		}
+	}
+
+	// evict eldest entries, starting from segment start, until under budget
+	private void evict(int start, String keep) {
+		int i = start;
+		int idle = 0; // consecutive segments that had nothing to give
+		while (size.get() > capacity && idle < segments.length) {
+			Segment s = segments[i];
+			boolean evicted = false;
+			synchronized (s) {
+				Iterator<Map.Entry<String, CachedFile>> it = s.map.entrySet().iterator();
+				if (it.hasNext()) {
+					Map.Entry<String, CachedFile> eldest = it.next();
+					// the entry just inserted is eldest only if it is alone
+					if (!eldest.getKey().equals(keep)) {
+						it.remove();
+						size.addAndGet(-eldest.getValue().weight(eldest.getKey()));
+						stats.evict();
+						evicted = true;
+					}
+				}
+			}
+			if (evicted) {
+				idle = 0;
+			} else {
+				idle++;
+				i = (i + 1) & mask;
+			}
+		}
+	}
+
+	@Override
+	public long size() {
+		return size.get();
+	}
+
+	@Override
+	public CacheStats stats() {
+		return stats;
+	}
+
+	static class Segment {
+		final LinkedHashMap<String, CachedFile> map = new LinkedHashMap<String, CachedFile>(16, 0.75f, true);
+	}
+}
@@ -0,0 +1,89 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * File extension to Content-Type table. Built once, from a few common
+ * types and the TypesConfig file in mime.types format (a type followed by
+ * its extensions, "#" starts a comment), then never changed, so lookups
+ * need no locking. The file cache resolves the type when a file is
+ * loaded; responses only copy the encoded header.
+ */
+public class MimeTypes {
+	public static final String DEFAULT = "application/octet-stream";
+
+	private final Map<String, String> types;
+
+	private MimeTypes(Map<String, String> types) {
+		this.types = Collections.unmodifiableMap(types);
+	}
+
+	// built-in types plus those of file, which win; file may be null
+	public static MimeTypes load(String file) throws IOException {
+		HashMap<String, String> types = new HashMap<String, String>();
+		add(types, "text/html", "html", "htm");
+		add(types, "text/plain", "txt");
+		add(types, "text/css", "css");
+		add(types, "application/javascript", "js");
+		add(types, "application/json", "json");
+		add(types, "application/xml", "xml");
+		add(types, "image/svg+xml", "svg");
+		add(types, "image/png", "png");
+		add(types, "image/jpeg", "jpg", "jpeg");
+		add(types, "image/gif", "gif");
+		add(types, "image/x-icon", "ico");
+		add(types, "application/pdf", "pdf");
+		add(types, "application/zip", "zip");
+		add(types, "application/gzip", "gz");
+		if (file != null) {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					int comment = line.indexOf('#');
+					if (comment >= 0) {
+						line = line.substring(0, comment);
+					}
+					String[] token = line.trim().split("\\s+");
+					for (int i = 1; i < token.length; i++) {
+						types.put(token[i].toLowerCase(), token[0].toLowerCase());
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return new MimeTypes(types);
+	}
+
+	private static void add(Map<String, String> types, String type, String... extensions) {
+		for (String extension : extensions) {
+			types.put(extension, type);
+		}
+	}
+
+	// Content-Type for path by its extension, DEFAULT if unknown
+	public String typeOf(String path) {
+		int dot = path.lastIndexOf('.');
+		if (dot < 0 || dot < path.lastIndexOf('/')) {
+			return DEFAULT;
+		}
+		String type = types.get(path.substring(dot + 1).toLowerCase());
+		return type == null ? DEFAULT : type;
+	}
+
+	// text compresses well, images and archives are compressed already
+	public static boolean isCompressible(String type) {
+		return type.startsWith("text/") || type.endsWith("+xml") || type.endsWith("/xml")
+				|| type.endsWith("/json") || type.endsWith("+json") || type.equals("application/javascript");
+	}
+
+	public int size() {
+		return types.size();
+	}
+}
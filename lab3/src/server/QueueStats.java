@@ -0,0 +1,59 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+import utility.LatencyHistogram;
+
+/**
+ * What waiting for connections costs a thread pool server: CPU time its
+ * service threads spend waiting on the queue, and the time connections
+ * spend in it before a thread picks them up. The queue disciplines of
+ * servers 4 and 5 trade one for the other; the summary is printed when the
+ * server stops, so runs of a sweep can be compared line by line.
+ */
+public class QueueStats {
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+	private final String discipline;
+	private final LatencyHistogram queueTime = new LatencyHistogram(); // guarded by itself
+	private final LongAdder waitCpuNanos = new LongAdder();
+
+	public QueueStats(String discipline) {
+		this.discipline = discipline;
+	}
+
+	// CPU time of the calling thread in ns, 0 where the JVM cannot tell
+	public static long cpuTime() {
+		return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : 0;
+	}
+
+	/**
+	 * A service thread finished waiting, which started when its CPU time was
+	 * cpuBefore. enqueued is when the connection it got was queued
+	 * (System.nanoTime), or -1 if it got none because the server stopped.
+	 */
+	public void waited(long cpuBefore, long enqueued) {
+		waitCpuNanos.add(cpuTime() - cpuBefore);
+		if (enqueued < 0) {
+			return;
+		}
+		long micros = (System.nanoTime() - enqueued) / 1000;
+		synchronized (queueTime) {
+			queueTime.record(micros);
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (queueTime) {
+			long n = queueTime.count();
+			long cpu = waitCpuNanos.sum();
+			return String.format("Queue wait (%s): %d connections, %.1f ms CPU waiting (%.1f us per connection)%s, time in queue %s",
+					discipline, n, cpu / 1e6, n == 0 ? 0 : cpu / 1e3 / n, CPU_TIME ? "" : " [thread CPU time not supported]",
+					queueTime.summary());
+		}
+	}
+}
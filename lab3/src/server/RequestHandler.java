@@ -1,84 +1,269 @@
 package server;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.lang.ProcessBuilder.Redirect;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import utility.Debug;
 import utility.HTTPRequest;
+import utility.HTTPRequestParser;
 import utility.HTTPResponse;
+import utility.ResponseWriter;
 
 public class RequestHandler {
 	static private ServerConfig config;
-	static private HashMap<String, byte[]> cache = new HashMap<String, byte[]>();
-	static private Double cache_curr_size = new Double(0);
-	static private final Long threshold = new Long(500); // 500 requests per second
-	static private Long token_num = new Long(0);
-	static private Long last_request_timestamp = new Long(0);
+	static private FileCache cache;
+	static private HealthMonitor health;
+	static private CGIPool cgi; // null if the workers could not be started
+	static private Executor cgiReader; // runs CGI scripts off the calling thread, null to run them on it
+	static private MimeTypes mimeTypes;
+	static private AccessLog accessLog; // null without AccessLog in the config
+	static private final ConnectionTracker connections = new ConnectionTracker();
+	static private final Set<String> loading = ConcurrentHashMap.newKeySet(); // files queued by loadLater
+	static private final AtomicLong changes = new AtomicLong(); // document root changes seen, see cacheLoaded
 	
 	/**
-	 * TODO: Understand header - If-Modified-Since - User-Agent Sender Header: -
-	 * Last-Modified Feature: - URL Mapping, / map to index.html or m_index.html
-	 * - Check mapping file is executable or not - heart beat monitoring
+	 * TODO: Understand header - User-Agent Feature: - URL Mapping, / map to
+	 * index.html or m_index.html
 	 **/
 	public static void setConfig(ServerConfig config) {
 		RequestHandler.config = config;
+		RequestHandler.cache = createCache(config);
+		RequestHandler.health = new HealthMonitor(config);
+		try {
+			RequestHandler.mimeTypes = MimeTypes.load(config.typesConfig);
+		} catch (IOException e) {
+			System.err.println("TypesConfig not read, using the built-in types: " + e.getMessage());
+			try {
+				RequestHandler.mimeTypes = MimeTypes.load(null);
+			} catch (IOException impossible) {
+				throw new AssertionError(impossible);
+			}
+		}
+		if (config.accessLog != null) {
+			try {
+				RequestHandler.accessLog = AccessLog.open(config.accessLog);
+			} catch (IOException e) {
+				System.err.println("AccessLog not opened, requests are not logged: " + e.getMessage());
+			}
+		}
+		if (config.watchDocumentRoot) {
+			try {
+				DocumentRootWatcher watcher = new DocumentRootWatcher(documentRoot(), cache);
+				if (config.cachePrewarm > 0) {
+					long budget = (long) Math.min(config.cachePrewarm, config.cacheSize) * 1024;
+					watcher.prewarm(budget, Runtime.getRuntime().availableProcessors());
+				}
+				watcher.start();
+			} catch (IOException e) {
+				System.err.println("Document root not watched: " + e.getMessage());
+			}
+		}
+		if (config.cgiWorkers > 0) {
+			try {
+				RequestHandler.cgi = new CGIPool(config);
+			} catch (IOException e) {
+				System.err.println("CGI disabled: " + e.getMessage());
+			}
+		}
+	}
+
+	// DocumentRoot, absolute and normalized; cache keys are normalized paths below it
+	static Path documentRoot() {
+		return Paths.get(config.documentRoot).toAbsolutePath().normalize();
+	}
+
+	// called by DocumentRootWatcher before it evicts or reloads a changed file
+	static void documentRootChanged() {
+		changes.incrementAndGet();
+	}
+
+	/**
+	 * Cache a file read from disk. generation is the change count read
+	 * before the file was read: if the document root changed since, the
+	 * watcher may have handled the change before this put while the read
+	 * got the old contents, so the entry is dropped again. Either the
+	 * watcher's eviction comes after the put, or the change is seen here.
+	 */
+	private static void cacheLoaded(String path, CachedFile file, long generation) {
+		cache.put(path, file);
+		if (changes.get() != generation) {
+			cache.remove(path);
+		}
+	}
+
+	/**
+	 * Run CGI scripts and read their output on reader, buffered, while the
+	 * thread generating the response waits for it. For callers that must not
+	 * block on the worker pipes themselves, e.g. virtual threads.
+	 */
+	public static void setCGIReader(Executor reader) {
+		cgiReader = reader;
+	}
+
+	// stop the CGI workers, called when the server exits
+	public static void shutdown() {
+		if (cgi != null) {
+			cgi.shutdown();
+		}
+		if (accessLog != null) {
+			accessLog.close();
+		}
+	}
+
+	// one access log line for a response, request is null if it could not be parsed
+	public static void logAccess(InetAddress client, HTTPRequest request, HTTPResponse response) {
+		if (accessLog != null) {
+			accessLog.log(client, request, response);
+		}
+	}
+
+	static FileCache createCache(ServerConfig config) {
+		long capacity = (long) config.cacheSize * 1024; // CacheSize is in kB
+		if (config.cachePolicy.equals("clock")) {
+			return new ClockFileCache(capacity);
+		}
+		// a few segments per service thread keeps collisions rare
+		return new LRUFileCache(capacity, Math.max(16, config.threadPoolSize * 4));
+	}
+
+	public static CacheStats getCacheStats() {
+		return cache.stats();
+	}
+
+	public static HealthMonitor getHealthMonitor() {
+		return health;
+	}
+
+	// client connections of the running server, drained by HTTPServer.stop
+	public static ConnectionTracker getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Welcome socket for the blocking servers. It is opened through a
+	 * ServerSocketChannel so that accepted sockets have a channel, which lets
+	 * sendResponse hand file bodies to FileChannel.transferTo.
+	 */
+	public static ServerSocket openWelcomeSocket(int port, int backlog) throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		ServerSocket welcomeSocket = serverChannel.socket();
+		welcomeSocket.bind(new InetSocketAddress(port), backlog);
+		return welcomeSocket;
+	}
+
+	// close a welcome socket on stop, a blocked accept() then throws
+	static void closeQuietly(ServerSocket socket) {
+		if (socket == null) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public static void sendResponse(Socket connectionSocket, HTTPResponse response) throws IOException {
+		ResponseWriter writer = new ResponseWriter(response);
+		SocketChannel channel = connectionSocket.getChannel();
+		try {
+			if (channel != null) {
+				// blocking channel, returns once everything is written
+				writer.writeTo(channel);
+			} else {
+				writer.writeTo(connectionSocket.getOutputStream());
+			}
+		} finally {
+			writer.close();
+		}
 	}
 
 	public static void HandleConnectionSocket(Socket connectionSocket){
+		ConnectionTracker.Drainable tracked = ConnectionTracker.of(connectionSocket);
+		connections.opened(tracked);
 		try{
-		BufferedReader inFromClient = new BufferedReader(new InputStreamReader(connectionSocket.getInputStream()));
-//		length = connectionSocket.getInputStream().read(b_buf);
-//		byte[] b_content = Arrays.copyOfRange(b_buf, 0, length);
-//		String s_request = new String(b_content, StandardCharsets.US_ASCII);
-		String line;
-		StringBuilder sb = new StringBuilder();
-		while((line = inFromClient.readLine()) != null){
-			sb.append(line);
-			sb.append("\r\n"); // append CRLF
-			// end of request
-			if(line.trim().equals("")){
-				//System.out.println("End of request detected.");
-				break;
-			}
-		}
-		/*
-		 * while (inFromClient.ready()) { clientSentence =
-		 * inFromClient.readLine(); System.out.println(clientSentence);
-		 * s_request += clientSentence + "\n"; }
-		 */
-		HTTPRequest request = HTTPRequest.parse(sb.toString());
-		// process input
-		if (request == null) {
-			System.err.println("request format error.");
-			System.out.println(sb);
-			connectionSocket.close();
-			return;
+		InputStream inFromClient = connectionSocket.getInputStream();
+		HTTPRequestParser parser = new HTTPRequestParser();
+		ByteBuffer inBuffer = ByteBuffer.allocate(4096);
+		inBuffer.limit(0); // nothing read yet
+		if (config.keepAliveTimeout > 0) {
+			// an idle persistent connection is dropped after this long
+			connectionSocket.setSoTimeout(config.keepAliveTimeout * 1000);
 		}
-		// generate response
-		HTTPResponse response = RequestHandler.getResponse(request);
-		if (response == null) {
-			System.err.println("Can not generate response");
-			connectionSocket.close();
-			return;
+		// requests are answered one after the other, so pipelined requests
+		// get their responses in order
+		for (int served = 0;; served++) {
+			HTTPRequest request;
+			if (served > 0 && !inBuffer.hasRemaining()) {
+				// between requests, a drain may end the connection here
+				connections.idle(tracked);
+			}
+			try {
+				request = RequestHandler.readRequest(inFromClient, parser, inBuffer);
+			} catch (SocketTimeoutException e) {
+				if (Debug.on(2)) {
+					Debug.DEBUG("keep-alive timeout, served " + served + " requests", 2);
+				}
+				return;
+			} finally {
+				connections.busy(tracked);
+			}
+			// process input
+			if (request == null) {
+				// a client that closes without sending anything is not an error
+				if (parser.hasError()) {
+					System.err.println("request format error: " + parser.getError());
+					HTTPResponse response = new HTTPResponse(400);
+					response.setConnection(null, false);
+					RequestHandler.sendResponse(connectionSocket, response);
+					logAccess(connectionSocket.getInetAddress(), null, response);
+				}
+				return;
+			}
+			// generate response
+			HTTPResponse response = RequestHandler.getResponse(request);
+			if (response == null) {
+				System.err.println("Can not generate response");
+				return;
+			}
+			boolean keepAlive = RequestHandler.keepAlive(request, response, served);
+			// send reply
+			Debug.DEBUG(response, 3);
+		//	Debug.DEBUG("writing response length: " + response.getBytes().length + " bytes to socket");
+			RequestHandler.sendResponse(connectionSocket, response);
+			logAccess(connectionSocket.getInetAddress(), request, response);
+			if (!keepAlive) {
+				return;
+			}
 		}
-		// send reply
-		Debug.DEBUG(response, 3);
-		DataOutputStream outToClient = new DataOutputStream(connectionSocket.getOutputStream());
-	//	Debug.DEBUG("writing response length: " + response.getBytes().length + " bytes to socket");
-		//outToClient.writeBytes(response.toString());
-		outToClient.write(response.getBytes());
-		//outToClient.flush();
 	//	Debug.DEBUG("close socket")
 		}catch(Exception e){
 			System.err.println(e.getStackTrace());
 		}finally{
+			connections.closed(tracked);
 			try {
 				connectionSocket.close();
 			} catch (IOException e) {
@@ -87,39 +272,134 @@ public class RequestHandler {
 			}
 		}
 	}
-	
-	public static boolean isHealthy(){
-		synchronized(token_num){
-			if(token_num == 0){
-				return false;
-			}else{
-				return true;
+
+	/**
+	 * Decide whether the connection stays open after this response and say
+	 * so in its header. served is the number of requests answered before
+	 * this one on the same connection.
+	 */
+	public static boolean keepAlive(HTTPRequest request, HTTPResponse response, int served) {
+		// a streamed body without chunked encoding ends by closing the connection
+		boolean keepAlive = config.keepAliveTimeout > 0 && served + 1 < config.maxKeepAliveRequests
+				&& !connections.isDraining() && wantsKeepAlive(request) && (response.getStream() == null || "HTTP/1.1".equals(request.getProtocol()));
+		response.setConnection(request.getProtocol(), keepAlive);
+		return keepAlive;
+	}
+
+	static boolean wantsKeepAlive(HTTPRequest request) {
+		String connection = request.getHeader("connection");
+		if (connection != null) {
+			connection = connection.toLowerCase();
+		}
+		if ("HTTP/1.1".equals(request.getProtocol())) {
+			return connection == null || !connection.contains("close");
+		}
+		return connection != null && connection.contains("keep-alive");
+	}
+
+	// idle timeout of persistent connections in seconds, 0 if disabled
+	public static int getKeepAliveTimeout() {
+		return config.keepAliveTimeout;
+	}
+
+	/**
+	 * Read one request from a blocking stream. buf holds bytes already read
+	 * and not yet parsed; bytes after the request are left in it.
+	 */
+	static HTTPRequest readRequest(InputStream in, HTTPRequestParser parser, ByteBuffer buf) throws IOException {
+		parser.reset();
+		HTTPRequest request = parser.parse(buf);
+		while (request == null && !parser.hasError()) {
+			buf.clear();
+			int n = in.read(buf.array(), 0, buf.capacity());
+			if (n == -1) {
+				buf.limit(0);
+				return parser.finish();
 			}
+			buf.limit(n);
+			request = parser.parse(buf);
 		}
+		return request;
 	}
-	
+
 	public static HTTPResponse getResponse(HTTPRequest request) {
-		synchronized(token_num){
-			long time = System.currentTimeMillis();
-			token_num += time - RequestHandler.last_request_timestamp;
-			RequestHandler.last_request_timestamp = time;
-			token_num -= 1000 / threshold;
-			if(token_num < 0){
-				token_num = 0L;
-			}
-			// unit time is 1000 ms
-			if(token_num > 1000){
-				token_num = 1000L;
-			}
+		// answered without touching the limiter, the load balancer polls it all the time
+		if ("/healthy".equals(request.getURL())) {
+			return forMethod(request, health.response());
+		}
+		if (!health.admit()) {
+			return forMethod(request, new HTTPResponse(503));
+		}
+		long begin = health.begin();
+		try {
+			return forMethod(request, generateResponse(request, null));
+		} finally {
+			health.end(begin);
+		}
+	}
+
+	/**
+	 * getResponse for the non-blocking servers: a streamed (CGI) body is read
+	 * here, on the thread generating the response, so writing it never
+	 * blocks a selector thread.
+	 */
+	public static HTTPResponse getBufferedResponse(HTTPRequest request) {
+		return buffered(getResponse(request));
+	}
+
+	/**
+	 * getBufferedResponse for servers that read files asynchronously: no file
+	 * is read on the calling thread. A file missing from the cache is
+	 * answered as a file body, for the caller to send from disk, and loaded
+	 * into the cache by loader meanwhile.
+	 */
+	public static HTTPResponse getFileStreamingResponse(HTTPRequest request, Executor loader) {
+		if ("/healthy".equals(request.getURL())) {
+			return forMethod(request, health.response());
+		}
+		if (!health.admit()) {
+			return forMethod(request, new HTTPResponse(503));
 		}
-		
+		long begin = health.begin();
+		try {
+			return forMethod(request, buffered(generateResponse(request, loader)));
+		} finally {
+			health.end(begin);
+		}
+	}
+
+	/**
+	 * The response as the request's method wants it: for HEAD the header a
+	 * GET would get, with no body, as a persistent connection's client reads
+	 * any bytes after it as the next response.
+	 */
+	private static HTTPResponse forMethod(HTTPRequest request, HTTPResponse response) {
+		if ("HEAD".equals(request.getMethod())) {
+			response = buffered(response); // a streamed body is read for its length
+			response.omitBody();
+		}
+		return response;
+	}
+
+	private static HTTPResponse buffered(HTTPResponse response) {
+		try {
+			response.bufferStream();
+		} catch (IOException e) {
+			Debug.DEBUG("cgi failed: " + e.getMessage(), 1);
+			return new HTTPResponse(500);
+		}
+		return response;
+	}
+
+	// loader: where cache misses are loaded, null to load them on this thread
+	private static HTTPResponse generateResponse(HTTPRequest request, Executor loader) {
 		String host = request.getHost();
 		String url = request.getURL();
 		if (!host.equals(config.servername)) {
 			// host name not match
 			return new HTTPResponse(404);
 		}
-		String rootDocument = config.documentRoot;
+		Path root = documentRoot();
 
 		// original url ends '/', map it to index.html
 		if (url.endsWith("/")) {
@@ -130,102 +410,353 @@ public class RequestHandler {
 			url = url.substring(1);
 		}
 
-		// trim trailing "/"
-		if (rootDocument.endsWith("/")) {
-			rootDocument = rootDocument.substring(0, rootDocument.length() - 1);
-		}
-
-		String file_path = rootDocument + "/" + url;
-
-		byte[] file_content = null;
-		
-		// is the path healthy?
-		if(url.equals("healthy")){
-			if(isHealthy()){
-				return new HTTPResponse(200);
-			}else{
-				return new HTTPResponse(404);
+		String file_path;
+		try {
+			// normalized as DocumentRootWatcher keys the file, "a/../b" and "b" are one entry
+			Path resolved = root.resolve(url).normalize();
+			if (!resolved.startsWith(root)) {
+				return new HTTPResponse(404); // "..", or an absolute path, leads out of the document root
 			}
-			
+			file_path = resolved.toString();
+		} catch (InvalidPathException e) {
+			return new HTTPResponse(404);
 		}
-		
+
 		// if file_path executable?
 		if (file_path.endsWith(".cgi")) {
 			Debug.DEBUG("Start cgi program..", 3);
-			ProcessBuilder pb = new ProcessBuilder("python", file_path);
-			Map<String, String> env = pb.environment();
-			// env.put("INDEX", Integer.toString(reqCount));
-			pb.redirectOutput(Redirect.PIPE);
-			Process p;
+			if (!new File(file_path).isFile()) {
+				return new HTTPResponse(404);
+			}
+			if (cgi == null) {
+				return new HTTPResponse(500); // no worker pool, see CGIWorker in the config
+			}
 			try {
-				p = pb.start();
-
-				BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
-				StringBuilder out = new StringBuilder();
-				String line;
-				while ((line = br.readLine()) != null) {
-					out.append(line);
+				if (cgiReader != null) {
+					return executeOn(cgiReader, file_path);
 				}
-				file_content = out.toString().getBytes();
+				// output is streamed to the client as the script writes it
+				return new HTTPResponse(200, cgi.execute(file_path));
+			} catch (CGIPool.TimeoutException e) {
+				Debug.DEBUG(e.getMessage(), 1);
+				return new HTTPResponse(504);
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				System.err.println(e.getStackTrace());
-				e.printStackTrace();
+				Debug.DEBUG("cgi failed: " + e.getMessage(), 1);
+				return new HTTPResponse(500);
 			}
 		} else {
 			// regular file
 			// read from cache
-			synchronized (cache) {
-				file_content = cache.get(file_path);
-				if(file_content != null)
+			CachedFile cached = cache.get(file_path);
+			if (cached != null) {
+				if (Debug.on(2)) {
 					Debug.DEBUG("cache hit: " + file_path, 2);
+				}
+			} else if (loader != null) {
+				// sent from disk this time, without compressed variants
+				cached = statFile(file_path);
+				if (cached != null) {
+					loadLater(file_path, loader);
+				}
+			} else {
+				long generation = changes.get();
+				cached = loadFile(file_path);
+				// file found, the cache evicts older entries to make room
+				if (cached != null) {
+					cacheLoaded(file_path, cached, generation);
+					if (Debug.on(2)) {
+						Debug.DEBUG("update cache: " + cache.size() / 1024 + " kB, max = " + config.cacheSize + " kB", 2);
+					}
+				}
 			}
-			// read from disk, update cache if cachesize is not reached
-			if (file_content == null) {
-				file_content = readFile(file_path);
-				// file found
-				if (file_content != null) {
-					// thread safe, modify cache_size and cache
-					synchronized (cache) {
-						double cache_size = RequestHandler.cache_curr_size
-								+ (double) (file_path.length() + file_content.length) / 1024;
-						// cache not full
-						if (cache_size < Integer.valueOf(config.cacheSize)) {
-							Debug.DEBUG("update cache: " + cache_size + " kB, max = " + Integer.valueOf(config.cacheSize) + " kB", 2);
-							cache.put(file_path, file_content);
-							RequestHandler.cache_curr_size = cache_size;
-						}else{
-							Debug.DEBUG("Cache is full", 2);
-						}
+			// file not found
+			if (cached == null) {
+				return new HTTPResponse(404);
+			}
+			HTTPResponse response;
+			if (cached.hasVariants()) {
+				CachedFile variant = cached.variant(chooseEncoding(request.getHeader("accept-encoding")));
+				if (variant != null) {
+					cached = variant; // compressed once, when the file was loaded
+				}
+			}
+			if (isNotModified(request, cached)) {
+				// the client's copy is current, send the header only
+				response = new HTTPResponse(304);
+				response.setEntityHeader(cached.getNotModifiedHeader());
+				return response;
+			}
+			long[] range = requestedRange(request, cached);
+			if (range == UNSATISFIABLE) {
+				response = new HTTPResponse(416);
+				response.setEntityHeader(HTTPResponse.encodeUnsatisfiableHeader(cached.getLength()));
+				return response;
+			}
+			if (range != null) {
+				long first = range[0], last = range[1];
+				if (cached.getFile() != null) {
+					response = new HTTPResponse(206, cached.getFile(), first, last - first + 1);
+				} else {
+					response = new HTTPResponse(206, cached.getContent(), (int) first, (int) (last - first + 1));
+				}
+				response.setEntityHeader(cached.getPartialHeader(first, last));
+				return response;
+			}
+			if (cached.getFile() != null) {
+				// large file, sent from disk without copying it into the heap
+				response = new HTTPResponse(200, cached.getFile(), cached.getLength());
+			} else {
+				response = new HTTPResponse(200, cached.getContent());
+			}
+			response.setEntityHeader(cached.getHeader());
+			return response;
+		}
+	}
+
+	// ------ //
+
+	/**
+	 * Whether a conditional request can be answered with 304. If-None-Match
+	 * wins over If-Modified-Since when both are present; both are checked
+	 * against the validators kept in the cache entry.
+	 */
+	static boolean isNotModified(HTTPRequest request, CachedFile cached) {
+		String method = request.getMethod();
+		if (!"GET".equals(method) && !"HEAD".equals(method)) {
+			return false;
+		}
+		String ifNoneMatch = request.getHeader("if-none-match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2); // weak comparison is enough for GET
+				}
+				if (tag.equals("*") || tag.equals(cached.getETag())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		String ifModifiedSince = request.getHeader("if-modified-since");
+		if (ifModifiedSince != null) {
+			try {
+				long since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+						.toInstant().toEpochMilli();
+				return cached.getLastModified() <= since;
+			} catch (DateTimeParseException e) {
+				return false; // invalid dates are ignored
+			}
+		}
+		return false;
+	}
+
+	private static final long[] UNSATISFIABLE = new long[0];
+
+	/**
+	 * First and last byte of the Range a GET asks for, null to send the
+	 * whole file, UNSATISFIABLE for a 416. Only a single byte range is
+	 * served; a list of ranges, a malformed Range and an If-Range that no
+	 * longer matches the file all get the whole file.
+	 */
+	static long[] requestedRange(HTTPRequest request, CachedFile cached) {
+		String range = request.getHeader("range");
+		if (range == null || !"GET".equals(request.getMethod())) {
+			return null;
+		}
+		String ifRange = request.getHeader("if-range");
+		if (ifRange != null && !ifRangeMatches(ifRange.trim(), cached)) {
+			return null; // the client's part is stale, start over
+		}
+		range = range.trim();
+		if (!range.toLowerCase().startsWith("bytes=") || range.indexOf(',') >= 0) {
+			return null;
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		long length = cached.getLength();
+		long first, last;
+		try {
+			if (dash == 0) {
+				// "-n": the last n bytes
+				long suffix = Long.parseLong(spec.substring(1).trim());
+				if (suffix <= 0) {
+					return UNSATISFIABLE;
+				}
+				first = Math.max(0, length - suffix);
+				last = length - 1;
+			} else {
+				first = Long.parseLong(spec.substring(0, dash).trim());
+				String end = spec.substring(dash + 1).trim();
+				last = length - 1;
+				if (!end.isEmpty()) {
+					long e = Long.parseLong(end);
+					if (e < first) {
+						return null; // "5-3" is invalid, not unsatisfiable
 					}
+					last = Math.min(e, last);
 				}
 			}
+		} catch (NumberFormatException e) {
+			return null;
 		}
-		// file not found
-		if (file_content == null){
-			return new HTTPResponse(404);
+		if (first < 0) {
+			return null;
+		}
+		if (first >= length) {
+			return UNSATISFIABLE;
 		}
-		return new HTTPResponse(200, file_content);
+		return new long[] { first, last };
 	}
 
-	// ------ //
+	// If-Range holds an ETag or a date; only an exact match allows a range
+	private static boolean ifRangeMatches(String ifRange, CachedFile cached) {
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return ifRange.equals(cached.getETag()); // weak tags never match
+		}
+		try {
+			long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			return date == cached.getLastModified();
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+
+	// files of at least ZeroCopyThreshold kB are only referenced, not read
+	// the Content-Type is resolved here, once per load
+	static CachedFile loadFile(String path) {
+		File file = new File(path);
+		if (!file.isFile()) {
+			return null;
+		}
+		long length = file.length();
+		long lastModified = file.lastModified();
+		String contentType = mimeTypes.typeOf(path);
+		// a variant has to fit in the cache, larger files are not read into memory at all
+		boolean compress = config.compression && length >= config.compressionMinSize
+				&& length <= (long) config.cacheSize * 1024 && MimeTypes.isCompressible(contentType);
+		if (length >= (long) config.zeroCopyThreshold * 1024) {
+			CachedFile cached = new CachedFile(file, length, lastModified, contentType);
+			if (compress) {
+				// the raw file stays on disk, its compressed variants are held in memory
+				byte[] content = readFile(path);
+				if (content != null) {
+					cached = cached.withVariants(content, config.compressionLevel);
+				}
+			}
+			return cached;
+		}
+		byte[] content = readFile(path);
+		if (content == null) {
+			return null;
+		}
+		CachedFile cached = new CachedFile(content, lastModified, contentType);
+		return compress ? cached.withVariants(content, config.compressionLevel) : cached;
+	}
 
 	/**
-	 * TODO Support Since-last-modify header
-	 **/
+	 * Content-Encoding to answer with for an Accept-Encoding header: gzip
+	 * if acceptable, else deflate, null for the identity encoding. Codings
+	 * with q=0 are refused; "*" stands for gzip.
+	 */
+	static String chooseEncoding(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		boolean gzip = false, deflate = false;
+		for (String coding : acceptEncoding.split(",")) {
+			String name = coding;
+			int semi = coding.indexOf(';');
+			if (semi >= 0) {
+				name = coding.substring(0, semi);
+				String param = coding.substring(semi + 1).trim();
+				if (param.startsWith("q=")) {
+					try {
+						if (Double.parseDouble(param.substring(2).trim()) <= 0) {
+							continue;
+						}
+					} catch (NumberFormatException e) {
+						continue;
+					}
+				}
+			}
+			name = name.trim().toLowerCase();
+			if (name.equals("gzip") || name.equals("x-gzip") || name.equals("*")) {
+				gzip = true;
+			} else if (name.equals("deflate")) {
+				deflate = true;
+			}
+		}
+		return gzip ? "gzip" : deflate ? "deflate" : null;
+	}
+
+	// a CachedFile that refers to the file on disk, whatever its size
+	private static CachedFile statFile(String path) {
+		File file = new File(path);
+		if (!file.isFile()) {
+			return null;
+		}
+		return new CachedFile(file, file.length(), file.lastModified(), mimeTypes.typeOf(path));
+	}
+
+	// run the script on reader and wait for its whole output
+	private static HTTPResponse executeOn(Executor reader, final String path) throws IOException {
+		FutureTask<HTTPResponse> task = new FutureTask<HTTPResponse>(new Callable<HTTPResponse>() {
+			public HTTPResponse call() throws IOException {
+				HTTPResponse response = new HTTPResponse(200, cgi.execute(path));
+				response.bufferStream();
+				return response;
+			}
+		});
+		try {
+			reader.execute(task);
+			return task.get();
+		} catch (RejectedExecutionException e) {
+			throw new IOException("server is shutting down");
+		} catch (InterruptedException e) {
+			task.cancel(true);
+			throw new IOException("interrupted waiting for a CGI script");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	// loadFile and cache the file on loader, once however many requests miss it meanwhile
+	private static void loadLater(final String path, Executor loader) {
+		if (!loading.add(path)) {
+			return;
+		}
+		try {
+			loader.execute(new Runnable() {
+				public void run() {
+					try {
+						long generation = changes.get();
+						CachedFile cached = loadFile(path);
+						if (cached != null) {
+							cacheLoaded(path, cached, generation);
+						}
+					} finally {
+						loading.remove(path);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			loading.remove(path); // shutting down
+		}
+	}
 
+	// whole file, read until its end; available() and a single read() may both fall short
 	private static byte[] readFile(String path) {
 		try {
-			FileInputStream inputStream = new FileInputStream(path);
-			int length = inputStream.available();
-			byte[] content = new byte[length];
-			inputStream.read(content);
-			inputStream.close();
-			return content;
+			return Files.readAllBytes(Paths.get(path));
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			// file do not exist
-			//e.printStackTrace();
 			return null;
 		}
 	}
@@ -1,9 +1,11 @@
 package server;
 import java.io.IOException;
-import java.util.HashMap;
+import java.time.Duration;
 
 import asyncServer.HTTPAsyncServer;
 import asyncServer.HTTPAsyncServerChannel;
+import utility.BufferPool;
+import utility.Debug;
 import utility.HTTPResponse;
 
 
@@ -35,10 +37,12 @@ public class SHTTPTestServer {
 		if(config == null){
 			return ; // config file error
 		}
-		HTTPServer server;
+		Debug.setLevel(config.debugLevel);
+		final HTTPServer server;
 		
-		RequestHandler.setConfig(config);
+		// before setConfig, prewarming the cache encodes headers
 		HTTPResponse.setServername(config.servername);
+		RequestHandler.setConfig(config);
 		
 		switch(server_idx){
 			// sequential server
@@ -67,10 +71,32 @@ public class SHTTPTestServer {
 			case 7:
 				server = new HTTPAsyncServerChannel(config);
 				break;
+			// a virtual thread per connection
+			case 8:
+				server = new HTTPVirtualThreadServer(config);
+				break;
+			// one selector thread serving every connection
+			case 9:
+				server = new HTTPAsynchronousServerSelect(config);
+				break;
 			default:
 				System.err.println("Unknown servername");
 				return ;
 		}
+		// on SIGTERM or SIGINT let open connections finish, then report cache effectiveness
+		final Duration drainTimeout = Duration.ofSeconds(config.drainTimeout);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				server.stop(drainTimeout);
+				RequestHandler.shutdown();
+				System.out.println(RequestHandler.getCacheStats());
+				if (BufferPool.SHARED.misses() > 0) { // only NIO servers borrow buffers
+					System.out.println(BufferPool.SHARED);
+				}
+				Debug.close();
+			}
+		});
 		// start server
 		server.start();
 	}
@@ -83,7 +109,9 @@ public class SHTTPTestServer {
 				+ "\t\t 4 - thread pool with a shared queue and busy wait\n"
 				+ "\t\t 5 - thread pool with a shared queue and suspension\n"
 				+ "\t\t 6 - asynchronous server using select\n"
-				+ "\t\t 7 - asynchronous server using channel\n";
+				+ "\t\t 7 - asynchronous server using channel\n"
+				+ "\t\t 8 - virtual thread per connection (Java 21, platform threads before)\n"
+				+ "\t\t 9 - single-threaded select loop\n";
 		System.err.println(prompt);
 	}
 }
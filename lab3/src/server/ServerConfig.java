@@ -20,6 +20,36 @@ public class ServerConfig {
 	public int port, threadPoolSize, cacheSize;
 	public String servername, documentRoot;
 	public String userAgent;
+	public String cachePolicy = "lru"; // lru or clock
+	public int zeroCopyThreshold = 64; // kB, larger files are sent with transferTo
+	public int keepAliveTimeout = 5; // seconds an idle connection is kept, 0 disables keep-alive
+	public int maxKeepAliveRequests = 100; // requests per connection
+	public int drainTimeout = 10; // seconds open connections get to finish when the server stops
+	public int selectorThreads = -1; // sub-reactors of the async server, -1: threadPoolSize, 0: none
+	public int workerThreads = 0; // async server response generation pool, 0: on the selector thread
+	public int workerQueueSize = 1024;
+	public int maxConnections = 0; // server 9 stops accepting at this many open connections, 0: no limit
+	public int channelThreads = 0; // server 7 channel group, and as many file reading threads; 0: threadPoolSize
+	public String acceptMode = "shared"; // server 3: shared welcome socket, or reuseport, one per thread
+	public int connectionQueueSize = 256; // accepted connections waiting for a service thread (server 5)
+	public String queueFullPolicy = "reject"; // reject: answer 503, block: stop accepting until there is room
+	public String queueWait = "spin"; // server 4: spin on the queue, or adaptive: spin, yield, then park
+	public int rateLimit = 0; // requests per second, above it requests get 503; 0: unlimited
+	public int rateLimitBurst = 0; // requests let through at once after idling, 0: one second worth
+	public int healthMaxQueue = 0; // /healthy reports overload above this queue depth, 0: ignore
+	public int healthMaxLatency = 0; // ms, /healthy reports overload above this p99, 0: ignore
+	public boolean watchDocumentRoot = true; // reload or evict cached files when they change on disk
+	public int cachePrewarm = 0; // kB of the document root loaded into the cache at startup, 0: none
+	public String typesConfig; // mime.types file adding to the built-in Content-Types, null: built-in only
+	public boolean compression = true; // gzip/deflate text files for clients that accept it
+	public int compressionMinSize = 1024; // bytes, smaller files are sent as they are
+	public int compressionLevel = 6; // 1 (fast) to 9 (small)
+	public int cgiWorkers = 4; // pre-forked python interpreters for .cgi scripts
+	public String cgiWorker = "../cgi_worker.py"; // script the CGI workers run
+	public int cgiTimeout = 10; // seconds a script may run, including the wait for a worker
+	public int cgiWorkerMaxRequests = 1000; // scripts a worker runs before it is replaced
+	public int debugLevel = 0; // debug output on stdout, 1: failures to 3: every request; 0: none
+	public String accessLog; // file responses are logged to in Common Log Format, null: no access log
 
 	private ServerConfig() {
 	};
@@ -28,8 +58,23 @@ public class ServerConfig {
 	public String toString() {
 		String s;
 		s = String.format(
-				"Config:\n listen: %d\n threadpoolsize: %d\n cachesize: %d\n documentroot: %s\n servername: %s\n",
-				this.port, this.threadPoolSize, this.cacheSize, this.documentRoot, this.servername);
+				"Config:\n listen: %d\n threadpoolsize: %d\n cachesize: %d\n cachepolicy: %s\n"
+						+ " zerocopythreshold: %d\n keepalivetimeout: %d\n maxkeepaliverequests: %d\n"
+						+ " draintimeout: %d\n"
+						+ " selectorthreads: %d\n workerthreads: %d\n workerqueuesize: %d\n maxconnections: %d\n channelthreads: %d\n"
+						+ " acceptmode: %s\n connectionqueuesize: %d\n queuefullpolicy: %s\n queuewait: %s\n"
+						+ " ratelimit: %d\n ratelimitburst: %d\n healthmaxqueue: %d\n healthmaxlatency: %d\n"
+						+ " watchdocumentroot: %s\n cacheprewarm: %d\n"
+						+ " typesconfig: %s\n compression: %s\n compressionminsize: %d\n compressionlevel: %d\n"
+						+ " cgiworkers: %d\n cgiworker: %s\n cgitimeout: %d\n cgiworkermaxrequests: %d\n"
+						+ " debuglevel: %d\n accesslog: %s\n"
+						+ " documentroot: %s\n servername: %s\n",
+				this.port, this.threadPoolSize, this.cacheSize, this.cachePolicy, this.zeroCopyThreshold,
+				this.keepAliveTimeout, this.maxKeepAliveRequests, this.drainTimeout, this.selectorThreads, this.workerThreads,
+				this.workerQueueSize, this.maxConnections, this.channelThreads, this.acceptMode, this.connectionQueueSize, this.queueFullPolicy, this.queueWait, this.rateLimit, this.rateLimitBurst, this.healthMaxQueue,
+				this.healthMaxLatency, this.watchDocumentRoot ? "on" : "off", this.cachePrewarm,
+				this.typesConfig, this.compression ? "on" : "off", this.compressionMinSize, this.compressionLevel, this.cgiWorkers,
+				this.cgiWorker, this.cgiTimeout, this.cgiWorkerMaxRequests, this.debugLevel, this.accessLog, this.documentRoot, this.servername);
 		return s;
 	}
 
@@ -73,6 +118,131 @@ public class ServerConfig {
 			case "servername":
 				sc.servername = value;
 				break;
+			case "cachepolicy":
+				if (!value.equals("lru") && !value.equals("clock")) {
+					System.err.println("Unknown cache policy: " + value + ", expect lru or clock");
+					scanner.close();
+					return null;
+				}
+				sc.cachePolicy = value;
+				break;
+			case "zerocopythreshold":
+				sc.zeroCopyThreshold = Integer.valueOf(value);
+				break;
+			case "keepalivetimeout":
+				sc.keepAliveTimeout = Integer.valueOf(value);
+				break;
+			case "maxkeepaliverequests":
+				sc.maxKeepAliveRequests = Integer.valueOf(value);
+				break;
+			case "draintimeout":
+				sc.drainTimeout = Integer.valueOf(value);
+				break;
+			case "selectorthreads":
+				sc.selectorThreads = Integer.valueOf(value);
+				break;
+			case "workerthreads":
+				sc.workerThreads = Integer.valueOf(value);
+				break;
+			case "workerqueuesize":
+				sc.workerQueueSize = Integer.valueOf(value);
+				break;
+			case "maxconnections":
+				sc.maxConnections = Integer.valueOf(value);
+				break;
+			case "channelthreads":
+				sc.channelThreads = Integer.valueOf(value);
+				break;
+			case "acceptmode":
+				if (!value.equals("reuseport") && !value.equals("shared")) {
+					System.err.println("Unknown accept mode: " + value + ", expect reuseport or shared");
+					scanner.close();
+					return null;
+				}
+				sc.acceptMode = value;
+				break;
+			case "connectionqueuesize":
+				sc.connectionQueueSize = Integer.valueOf(value);
+				break;
+			case "queuefullpolicy":
+				if (!value.equals("reject") && !value.equals("block")) {
+					System.err.println("Unknown queue full policy: " + value + ", expect reject or block");
+					scanner.close();
+					return null;
+				}
+				sc.queueFullPolicy = value;
+				break;
+			case "queuewait":
+				if (!value.equals("spin") && !value.equals("adaptive")) {
+					System.err.println("Unknown queue wait: " + value + ", expect spin or adaptive");
+					scanner.close();
+					return null;
+				}
+				sc.queueWait = value;
+				break;
+			case "ratelimit":
+				sc.rateLimit = Integer.valueOf(value);
+				break;
+			case "ratelimitburst":
+				sc.rateLimitBurst = Integer.valueOf(value);
+				break;
+			case "healthmaxqueue":
+				sc.healthMaxQueue = Integer.valueOf(value);
+				break;
+			case "healthmaxlatency":
+				sc.healthMaxLatency = Integer.valueOf(value);
+				break;
+			case "watchdocumentroot":
+				if (!value.equals("on") && !value.equals("off")) {
+					System.err.println("WatchDocumentRoot expects on or off, not " + value);
+					scanner.close();
+					return null;
+				}
+				sc.watchDocumentRoot = value.equals("on");
+				break;
+			case "cacheprewarm":
+				sc.cachePrewarm = Integer.valueOf(value);
+				break;
+			case "typesconfig":
+				sc.typesConfig = token[1]; // a path, keep its case
+				break;
+			case "compression":
+				if (!value.equals("on") && !value.equals("off")) {
+					System.err.println("Compression expects on or off, not " + value);
+					scanner.close();
+					return null;
+				}
+				sc.compression = value.equals("on");
+				break;
+			case "compressionminsize":
+				sc.compressionMinSize = Integer.valueOf(value);
+				break;
+			case "compressionlevel":
+				sc.compressionLevel = Integer.valueOf(value);
+				if (sc.compressionLevel < 1 || sc.compressionLevel > 9) {
+					System.err.println("CompressionLevel must be between 1 and 9");
+					scanner.close();
+					return null;
+				}
+				break;
+			case "cgiworkers":
+				sc.cgiWorkers = Integer.valueOf(value);
+				break;
+			case "cgiworker":
+				sc.cgiWorker = token[1]; // a path, keep its case
+				break;
+			case "debuglevel":
+				sc.debugLevel = Integer.valueOf(value);
+				break;
+			case "accesslog":
+				sc.accessLog = token[1]; // a path, keep its case
+				break;
+			case "cgitimeout":
+				sc.cgiTimeout = Integer.valueOf(value);
+				break;
+			case "cgiworkermaxrequests":
+				sc.cgiWorkerMaxRequests = Integer.valueOf(value);
+				break;
 			case "user-agent":
 				sc.userAgent = value;
 				break;
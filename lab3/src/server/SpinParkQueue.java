@@ -0,0 +1,147 @@
+package server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Handoff queue between the accept thread and service threads that waits in
+ * three steps: spin on the queue for a while, then yield a few times, then
+ * park until a connection is offered. The producer takes no lock and only
+ * unparks a thread when nobody is polling the queue already.
+ *
+ * The spin budget follows the arrival rate: a take that succeeds while
+ * spinning doubles it, so under steady load threads pick connections up
+ * without ever sleeping; a take that had to park halves it, so a server
+ * that is mostly idle parks almost at once instead of burning a core per
+ * thread. On a single CPU there is no spinning at all.
+ */
+public class SpinParkQueue<E> {
+	// on one CPU the accept thread cannot run while a service thread spins, so only yield
+	private static final boolean MULTI_CPU = Runtime.getRuntime().availableProcessors() > 1;
+	private static final int MIN_SPINS = MULTI_CPU ? 16 : 0;
+	private static final int MAX_SPINS = MULTI_CPU ? 1 << 14 : 0;
+	private static final int YIELDS = 4;
+	private static final MethodHandle ON_SPIN_WAIT = onSpinWait();
+
+	private final ConcurrentLinkedQueue<E> items = new ConcurrentLinkedQueue<E>();
+	private final ConcurrentLinkedQueue<Thread> parked = new ConcurrentLinkedQueue<Thread>();
+	private final AtomicInteger polling = new AtomicInteger(); // threads spinning or yielding
+	private volatile int spins = MIN_SPINS;
+	private final LongAdder bySpin = new LongAdder();
+	private final LongAdder byYield = new LongAdder();
+	private final LongAdder byPark = new LongAdder();
+
+	// Thread.onSpinWait(), null before Java 9; the code is compiled for Java 8
+	private static MethodHandle onSpinWait() {
+		try {
+			return MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	public void offer(E e) {
+		items.offer(e);
+		// a polling thread sees e; one that stops polling registers as parked before its last poll
+		if (polling.get() == 0) {
+			wakeOne();
+		}
+	}
+
+	public E poll() {
+		return items.poll();
+	}
+
+	public boolean isEmpty() {
+		return items.isEmpty();
+	}
+
+	// walks the queue, for reports only
+	public int size() {
+		return items.size();
+	}
+
+	public E take() throws InterruptedException {
+		int limit = spins;
+		E e = null;
+		polling.incrementAndGet();
+		for (int i = 0; i < limit && e == null; i++) {
+			e = items.poll();
+			if (e == null) {
+				spinWait();
+			}
+		}
+		boolean spun = e != null;
+		for (int i = 0; i < YIELDS && e == null; i++) {
+			Thread.yield();
+			e = items.poll();
+		}
+		// stop counting as polling before took() looks at the queue: an offer
+		// made meanwhile skipped its wakeup for us, took() passes it on
+		polling.decrementAndGet();
+		if (e != null) {
+			if (spun) {
+				bySpin.increment();
+				spins = Math.min(MAX_SPINS, limit * 2);
+			} else {
+				byYield.increment();
+			}
+			return took(e);
+		}
+		Thread me = Thread.currentThread();
+		parked.add(me);
+		while ((e = items.poll()) == null) {
+			LockSupport.park(this);
+			if (Thread.interrupted()) {
+				if (!parked.remove(me) && !items.isEmpty()) {
+					wakeOne(); // the wakeup was meant for a connection, hand it on
+				}
+				throw new InterruptedException();
+			}
+			if (!parked.contains(me)) {
+				parked.add(me); // woken but another thread was faster, register before polling again
+			}
+		}
+		parked.remove(me);
+		byPark.increment();
+		spins = Math.max(MIN_SPINS, limit / 2);
+		return took(e);
+	}
+
+	// offer() skips the wakeup while threads poll, so pass it on if more is queued
+	private E took(E e) {
+		if (!items.isEmpty()) {
+			wakeOne();
+		}
+		return e;
+	}
+
+	private void wakeOne() {
+		Thread t = parked.poll();
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	private static void spinWait() {
+		if (ON_SPIN_WAIT == null) {
+			return;
+		}
+		try {
+			ON_SPIN_WAIT.invokeExact();
+		} catch (Throwable t) {
+			throw new AssertionError(t);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Spin/park handoff: %d taken spinning, %d yielding, %d parked, spin budget %d",
+				bySpin.sum(), byYield.sum(), byPark.sum(), spins);
+	}
+}
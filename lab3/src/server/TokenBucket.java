@@ -0,0 +1,48 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket. The whole bucket is one long, the time at which
+ * it would be full again (the "theoretical arrival time" of GCRA), so
+ * taking a token is a single CAS and no thread ever waits for a lock.
+ *
+ * Each token moves that time one interval (1/rate) into the future; the
+ * bucket is empty once it lies more than burst intervals ahead of now.
+ */
+public class TokenBucket {
+	private final long interval; // nanoseconds per token
+	private final long capacity; // burst * interval
+	private final AtomicLong full;
+
+	// burst is the most tokens that can pile up while the server is idle
+	public TokenBucket(long ratePerSecond, long burst) {
+		if (ratePerSecond <= 0 || burst <= 0) {
+			throw new IllegalArgumentException("rate " + ratePerSecond + ", burst " + burst);
+		}
+		this.interval = Math.max(1, 1000000000L / ratePerSecond);
+		this.capacity = burst * interval;
+		this.full = new AtomicLong(System.nanoTime());
+	}
+
+	// take one token, false if the bucket is empty
+	public boolean tryAcquire() {
+		long now = System.nanoTime();
+		while (true) {
+			long f = full.get();
+			long next = Math.max(f, now) + interval;
+			if (next - now > capacity) {
+				return false;
+			}
+			if (full.compareAndSet(f, next)) {
+				return true;
+			}
+		}
+	}
+
+	// tokens left right now, does not change the bucket
+	public long available() {
+		long now = System.nanoTime();
+		return (capacity - Math.max(0, full.get() - now)) / interval;
+	}
+}
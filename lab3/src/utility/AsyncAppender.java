@@ -0,0 +1,166 @@
+package utility;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log events on a thread of its own, so a thread that logs never
+ * waits for the console or the disk. Events pass through a bounded ring
+ * that any number of threads add to without taking a lock (each slot
+ * carries a sequence number telling whether it is free or filled, as in
+ * Vyukov's bounded queue). When the ring is full the event is dropped and
+ * counted instead of holding up the caller. Events are turned into text by
+ * the writer thread.
+ */
+public class AsyncAppender {
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/** Something to log, formatted on the writer thread. */
+	public interface Event {
+		// one line, without the line break
+		void format(StringBuilder out);
+	}
+
+	private final String name;
+	private final AtomicReferenceArray<Event> slots;
+	private final AtomicLongArray sequences; // pos + 1 once slot pos is filled, pos + capacity once read
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong(); // next position to fill
+	private long head; // next position to read, writer thread only
+	private final LongAdder dropped = new LongAdder();
+	private final Writer out;
+	private final Thread writer;
+	private volatile boolean sleeping;
+	private volatile boolean closed;
+
+	// capacity is rounded up to a power of two; out is flushed, never closed
+	public AsyncAppender(String name, OutputStream out, int capacity) {
+		int n = 2;
+		while (n < capacity) {
+			n <<= 1;
+		}
+		this.name = name;
+		this.slots = new AtomicReferenceArray<Event>(n);
+		this.sequences = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++) {
+			sequences.set(i, i);
+		}
+		this.mask = n - 1;
+		this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, name + "-log");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	// false if the ring was full and e was dropped
+	public boolean append(Event e) {
+		long pos = tail.get();
+		while (true) {
+			int i = (int) pos & mask;
+			long diff = sequences.get(i) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					slots.lazySet(i, e);
+					sequences.set(i, pos + 1); // publishes the event
+					break;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				dropped.increment(); // slot not read yet, the ring is full
+				return false;
+			} else {
+				pos = tail.get(); // another thread took the slot
+			}
+		}
+		// read after publishing; the writer sets sleeping before its last look at the ring
+		if (sleeping) {
+			LockSupport.unpark(writer);
+		}
+		return true;
+	}
+
+	private Event poll() {
+		int i = (int) head & mask;
+		if (sequences.get(i) != head + 1) {
+			return null;
+		}
+		Event e = slots.get(i);
+		slots.lazySet(i, null);
+		sequences.set(i, head + slots.length());
+		head++;
+		return e;
+	}
+
+	private boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+
+	private void write() {
+		StringBuilder line = new StringBuilder(256);
+		boolean failed = false;
+		while (true) {
+			Event e = poll();
+			if (e != null) {
+				line.setLength(0);
+				e.format(line);
+				line.append('\n');
+				try {
+					out.append(line);
+				} catch (IOException ex) {
+					failed = report(failed, ex);
+				}
+				continue;
+			}
+			// caught up, let the lines out before waiting
+			try {
+				out.flush();
+			} catch (IOException ex) {
+				failed = report(failed, ex);
+			}
+			if (closed) {
+				return;
+			}
+			sleeping = true;
+			if (isEmpty()) {
+				LockSupport.parkNanos(this, IDLE_NANOS);
+			}
+			sleeping = false;
+		}
+	}
+
+	// once per appender, the log itself cannot take it
+	private boolean report(boolean reported, IOException e) {
+		if (!reported) {
+			System.err.println("Log " + name + " not written: " + e.getMessage());
+		}
+		return true;
+	}
+
+	// write what is in the ring, then stop the writer thread
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(1000);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	public long dropped() {
+		return dropped.sum();
+	}
+}
@@ -0,0 +1,128 @@
+package utility;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct ByteBuffers in power-of-two size classes, so NIO servers do
+ * not allocate a fresh buffer for every connection. Direct buffers are read
+ * into by the kernel without the extra copy a heap buffer needs.
+ *
+ * Buffers are borrowed with acquire() and handed back with release(). A
+ * released buffer is kept while the pool holds less than its byte budget,
+ * otherwise it is left to the garbage collector.
+ */
+public class BufferPool {
+	private static final int MIN_SHIFT = 10; // 1 kB
+	private static final int MAX_SHIFT = 22; // 4 MB
+
+	// shared by all servers of this process
+	public static final BufferPool SHARED = new BufferPool(64 << 20);
+
+	private final ConcurrentLinkedQueue<ByteBuffer>[] classes;
+	private final AtomicInteger[] idle; // buffers waiting in each class
+	private final long maxIdleBytes;
+	private final AtomicLong idleBytes = new AtomicLong();
+	private final AtomicLong borrowed = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool(long maxIdleBytes) {
+		this.maxIdleBytes = maxIdleBytes;
+		int n = MAX_SHIFT - MIN_SHIFT + 1;
+		classes = new ConcurrentLinkedQueue[n];
+		idle = new AtomicInteger[n];
+		for (int i = 0; i < n; i++) {
+			classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			idle[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * A cleared buffer of at least size bytes. Sizes above the largest class
+	 * get an unpooled heap buffer.
+	 */
+	public ByteBuffer acquire(int size) {
+		int c = sizeClass(size);
+		if (c < 0) {
+			misses.increment();
+			return ByteBuffer.allocate(size);
+		}
+		borrowed.incrementAndGet();
+		ByteBuffer b = classes[c].poll();
+		if (b != null) {
+			idle[c].decrementAndGet();
+			idleBytes.addAndGet(-b.capacity());
+			hits.increment();
+			b.clear();
+			return b;
+		}
+		misses.increment();
+		return ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+	}
+
+	// give back a buffer from acquire(), it must not be used afterwards
+	public void release(ByteBuffer b) {
+		if (b == null || !b.isDirect()) {
+			return;
+		}
+		int c = sizeClass(b.capacity());
+		if (c < 0 || b.capacity() != 1 << (c + MIN_SHIFT)) {
+			return; // not one of ours
+		}
+		borrowed.decrementAndGet();
+		if (idleBytes.addAndGet(b.capacity()) > maxIdleBytes) {
+			idleBytes.addAndGet(-b.capacity());
+			dropped.increment();
+			return;
+		}
+		idle[c].incrementAndGet();
+		classes[c].offer(b);
+	}
+
+	// index of the smallest class holding size bytes, -1 if too large
+	private static int sizeClass(int size) {
+		if (size > 1 << MAX_SHIFT) {
+			return -1;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1 << MIN_SHIFT) - 1);
+		return shift - MIN_SHIFT;
+	}
+
+	// buffers currently lent out
+	public long borrowed() {
+		return borrowed.get();
+	}
+
+	// bytes parked in the pool, ready to be lent
+	public long idleBytes() {
+		return idleBytes.get();
+	}
+
+	// acquires that had to allocate
+	public long misses() {
+		return misses.sum();
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < classes.length; i++) {
+			int n = idle[i].get();
+			if (n > 0) {
+				sb.append(' ').append(1 << (i + MIN_SHIFT - 10)).append("k:").append(n);
+			}
+		}
+		return String.format("Buffers: borrowed %d, idle %d bytes, hits %d, misses %d, dropped %d%s", borrowed(),
+				idleBytes(), hits(), misses(), dropped.sum(), sb);
+	}
+}
@@ -0,0 +1,89 @@
+package utility;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * gzip and deflate (zlib) bodies of the same data. Both formats wrap the
+ * same raw deflate stream, so the data is compressed only once and the two
+ * encodings only differ in their header and checksum trailer.
+ */
+public class Compression {
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final byte[] gzip;
+	private final byte[] deflate;
+
+	private Compression(byte[] gzip, byte[] deflate) {
+		this.gzip = gzip;
+		this.deflate = deflate;
+	}
+
+	public byte[] gzip() {
+		return gzip;
+	}
+
+	public byte[] deflate() {
+		return deflate;
+	}
+
+	// compress data at level (1-9), null if that does not make it smaller
+	public static Compression of(byte[] data, int level) {
+		Deflater deflater = new Deflater(level, true); // raw stream, no zlib wrapper
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream raw = new ByteArrayOutputStream(data.length / 4 + 64);
+		byte[] chunk = new byte[8192];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(chunk);
+			raw.write(chunk, 0, n);
+		}
+		deflater.end();
+		if (raw.size() + GZIP_HEADER.length + 8 >= data.length) {
+			return null;
+		}
+		byte[] body = raw.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		byte[] gzip = new byte[GZIP_HEADER.length + body.length + 8];
+		System.arraycopy(GZIP_HEADER, 0, gzip, 0, GZIP_HEADER.length);
+		System.arraycopy(body, 0, gzip, GZIP_HEADER.length, body.length);
+		putIntLE(gzip, gzip.length - 8, crc.getValue());
+		putIntLE(gzip, gzip.length - 4, data.length);
+
+		Adler32 adler = new Adler32();
+		adler.update(data, 0, data.length);
+		byte[] deflate = new byte[2 + body.length + 4];
+		deflate[0] = 0x78; // deflate, 32K window
+		deflate[1] = zlibFlags(level);
+		System.arraycopy(body, 0, deflate, 2, body.length);
+		putIntBE(deflate, deflate.length - 4, adler.getValue());
+		return new Compression(gzip, deflate);
+	}
+
+	// FLEVEL of the zlib header, each value keeps the header a multiple of 31
+	private static byte zlibFlags(int level) {
+		if (level <= 1) {
+			return 0x01;
+		}
+		if (level < 6) {
+			return 0x5e;
+		}
+		return level == 6 ? (byte) 0x9c : (byte) 0xda;
+	}
+
+	private static void putIntLE(byte[] b, int off, long v) {
+		for (int i = 0; i < 4; i++) {
+			b[off + i] = (byte) (v >>> (8 * i));
+		}
+	}
+
+	private static void putIntBE(byte[] b, int off, long v) {
+		for (int i = 0; i < 4; i++) {
+			b[off + i] = (byte) (v >>> (8 * (3 - i)));
+		}
+	}
+}
@@ -1,14 +1,70 @@
 package utility;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Debug output by verbosity: 1 for failures, 2 for connection and cache
+ * events, 3 for every request and event. Messages up to the DebugLevel of
+ * the config are written to stdout by an AsyncAppender, so the reactor
+ * threads never wait for the console. Call sites on the request path check
+ * on(level) before building their message; a disabled level then costs a
+ * single comparison.
+ */
 public class Debug {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private static int level = 0; // verbose level, 0: off
+    private static AsyncAppender out; // null until a level is set
+
+    // set before the server threads start, they read the level without a lock
+    public static synchronized void setLevel(int level) {
+        if (level > 0 && out == null) {
+            out = new AsyncAppender("debug", System.out, 8192);
+        }
+        Debug.level = level;
+    }
+
+    public static boolean on(int level) {
+        return level <= Debug.level;
+    }
 
-    private static boolean DEBUG = true;
-    private static int level = 0; // verbose level
-    
     public static void DEBUG(Object s, int level) {
-    	if (DEBUG && level <= Debug.level)
-    	    System.out.println(s);
+        if (level <= Debug.level) {
+            out.append(new Message(level, String.valueOf(s)));
         }
+    }
+
     public static void DEBUG(Object s) {
-		DEBUG(s, 3);
+        DEBUG(s, 3);
+    }
+
+    // write what is still queued, at exit
+    public static synchronized void close() {
+        if (out != null) {
+            if (out.dropped() > 0) {
+                System.out.println("Debug: " + out.dropped() + " messages dropped, the log could not keep up");
+            }
+            out.close();
+        }
+    }
+
+    private static class Message implements AsyncAppender.Event {
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final int level;
+        final String text;
+
+        Message(int level, String text) {
+            this.level = level;
+            this.text = text;
+        }
+
+        public void format(StringBuilder b) {
+            TIME.formatTo(Instant.ofEpochMilli(time), b);
+            b.append(' ').append(level).append(" [").append(thread).append("] ").append(text);
+        }
     }
 }
@@ -1,17 +1,20 @@
 package utility;
 
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.util.HashMap;
 
 public class HTTPRequest {
 	final static String method = "GET";
-	final static String host_label = "HOST:";
 	final static String protocol = "HTTP/1.0";
 	final static String CRLF = "\r\n";
 	private String host = "";
 	private String url = "/";
+	private String requestMethod = method;
+	private String requestProtocol = protocol;
+	// header fields by lower case name
+	private HashMap<String, String> m_headers = new HashMap<String, String>();
 
 	public HTTPRequest(){}
 	
@@ -25,36 +28,32 @@ public class HTTPRequest {
 		
 	}
 	
+	HTTPRequest(String requestMethod, String url, String requestProtocol){
+		this.requestMethod = requestMethod;
+		this.url = url;
+		this.requestProtocol = requestProtocol;
+	}
+	
 	// construct header from HTTP plain text
 	public static HTTPRequest parse(String s){
-		Scanner scanner = new Scanner(s);
-		try{
-			String host, host_label;
-			String method = scanner.next().toUpperCase();
-			String url = scanner.next();
-			String protocol = scanner.next().toUpperCase();
-			/*if(!method.equals(HTTPRequest.method) || !protocol.equals(HTTPRequest.protocol)){
-				throw new NoSuchElementException("Unknown Method or Protocol.");
-			}*/
-			if(scanner.hasNext()){
-				host_label = scanner.next().toUpperCase();
-				host = scanner.next();
-				if(!host_label.equals(HTTPRequest.host_label)){
-					throw new NoSuchElementException("Unknown header field.");
-				}
-				return new HTTPRequest(url, host);
-			}else{
-				return new HTTPRequest(url);
-			}
-			
-		}catch(NoSuchElementException e){
-			System.err.println(e.getMessage());
-			return null;
+		HTTPRequestParser parser = new HTTPRequestParser();
+		HTTPRequest request = parser.parse(ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII)));
+		if(request == null){
+			// text may lack the terminating empty line
+			request = parser.finish();
 		}
-		finally{
-			scanner.close();
+		if(request == null){
+			System.err.println("Malformed request.");
+		}
+		return request;
+	}
+	
+	// called by the parser, name is already lower case
+	void addHeader(String name, String value){
+		this.m_headers.put(name, value);
+		if(name.equals("host")){
+			this.host = value;
 		}
-		
 	}
 	
 	public String getURL(){
@@ -65,10 +64,23 @@ public class HTTPRequest {
 		return this.host;
 	}
 	
+	public String getMethod(){
+		return this.requestMethod;
+	}
+	
+	public String getProtocol(){
+		return this.requestProtocol;
+	}
+	
+	// header field value, case insensitive name, null if absent
+	public String getHeader(String name){
+		return this.m_headers.get(name.toLowerCase());
+	}
+	
 	@Override
 	public String toString(){
 		String text = "";
-		text = HTTPRequest.method + " " + this.url + " " + HTTPRequest.protocol + HTTPRequest.CRLF;
+		text = this.requestMethod + " " + this.url + " " + this.requestProtocol + HTTPRequest.CRLF;
 		// append host field
 		if(!this.host.isEmpty()){
 			text = text + "Host: " + this.host + HTTPRequest.CRLF;
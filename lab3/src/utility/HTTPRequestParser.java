@@ -0,0 +1,233 @@
+package utility;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental HTTP request parser working directly on a ByteBuffer.
+ *
+ * Feed it whatever a read returned; parse() consumes bytes up to the end of
+ * one request and returns it, or returns null when it needs more input.
+ * Bytes after the request (a pipelined request) are left in the buffer.
+ * One parser serves a whole connection: call reset() after each request.
+ *
+ * The only allocations are the strings of the parsed request. Bytes of the
+ * current line are collected in a fixed array, so a line split across
+ * reads costs nothing extra, and well-known methods, versions and header
+ * names map to shared constants instead of new strings.
+ */
+public class HTTPRequestParser {
+	static final int MAX_LINE = 8192;
+	static final int MAX_HEADERS = 100;
+
+	private static final int REQUEST_LINE = 0;
+	private static final int HEADERS = 1;
+	private static final int DONE = 2;
+	private static final int ERROR = 3;
+
+	private static final byte CR = '\r', LF = '\n', SP = ' ', HT = '\t', COLON = ':';
+
+	private static final String[] KNOWN_METHODS = { "GET", "HEAD", "POST" };
+	private static final String[] KNOWN_PROTOCOLS = { "HTTP/1.0", "HTTP/1.1" };
+	// lower case, matched case-insensitively
+	private static final String[] KNOWN_HEADERS = { "host", "connection", "user-agent", "accept", "accept-encoding",
+			"if-modified-since", "if-none-match", "range", "if-range", "content-length" };
+	private static final byte[][] KNOWN_HEADER_BYTES = toBytes(KNOWN_HEADERS);
+
+	private final byte[] line = new byte[MAX_LINE];
+	private int lineLength = 0;
+	private int state = REQUEST_LINE;
+	private int headerCount = 0;
+	private HTTPRequest request;
+	private String error;
+
+	/**
+	 * Consume bytes from in. Returns the request once its terminating empty
+	 * line has been read, otherwise null; check hasError() when null.
+	 */
+	public HTTPRequest parse(ByteBuffer in) {
+		while (state < DONE && in.hasRemaining()) {
+			byte b = in.get();
+			if (b == LF) {
+				// tolerate bare LF line endings
+				int len = lineLength > 0 && line[lineLength - 1] == CR ? lineLength - 1 : lineLength;
+				lineLength = 0;
+				endOfLine(len);
+			} else if (lineLength == MAX_LINE) {
+				fail(state == REQUEST_LINE ? "request line too long" : "header line too long");
+			} else {
+				line[lineLength++] = b;
+			}
+		}
+		return state == DONE ? request : null;
+	}
+
+	/**
+	 * The peer closed the connection. Returns the request if at least the
+	 * request line was read; old clients may omit the final empty line.
+	 */
+	public HTTPRequest finish() {
+		if (state == HEADERS) {
+			if (lineLength > 0) {
+				int len = line[lineLength - 1] == CR ? lineLength - 1 : lineLength;
+				lineLength = 0;
+				endOfLine(len);
+			}
+			if (state == HEADERS) {
+				state = DONE;
+			}
+		}
+		return state == DONE ? request : null;
+	}
+
+	// prepare for the next request on the same connection
+	public void reset() {
+		lineLength = 0;
+		headerCount = 0;
+		state = REQUEST_LINE;
+		request = null;
+		error = null;
+	}
+
+	public boolean hasError() {
+		return state == ERROR;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	// true once some bytes of a request that is not complete have been read
+	public boolean inProgress() {
+		return state == HEADERS || (state == REQUEST_LINE && lineLength > 0);
+	}
+
+	private void endOfLine(int len) {
+		if (state == REQUEST_LINE) {
+			if (len == 0) {
+				return; // empty lines before a request are allowed
+			}
+			parseRequestLine(len);
+		} else if (len == 0) {
+			state = DONE;
+		} else {
+			parseHeader(len);
+		}
+	}
+
+	private void parseRequestLine(int len) {
+		int sp1 = indexOf(SP, 0, len);
+		int sp2 = sp1 < 0 ? -1 : indexOf(SP, sp1 + 1, len);
+		if (sp1 <= 0 || sp2 < 0 || sp2 == sp1 + 1) {
+			fail("malformed request line");
+			return;
+		}
+		// tolerate extra spaces before the version
+		int p = sp2;
+		while (p < len && line[p] == SP) {
+			p++;
+		}
+		String method = lookup(KNOWN_METHODS, 0, sp1);
+		String url = new String(line, sp1 + 1, sp2 - sp1 - 1, StandardCharsets.US_ASCII);
+		String protocol = lookup(KNOWN_PROTOCOLS, p, len);
+		if (!protocol.startsWith("HTTP/")) {
+			fail("unknown protocol " + protocol);
+			return;
+		}
+		request = new HTTPRequest(method, url, protocol);
+		state = HEADERS;
+	}
+
+	private void parseHeader(int len) {
+		if (++headerCount > MAX_HEADERS) {
+			fail("too many header fields");
+			return;
+		}
+		int colon = indexOf(COLON, 0, len);
+		if (colon <= 0) {
+			fail("malformed header field");
+			return;
+		}
+		int vs = colon + 1, ve = len;
+		while (vs < ve && (line[vs] == SP || line[vs] == HT)) {
+			vs++;
+		}
+		while (ve > vs && (line[ve - 1] == SP || line[ve - 1] == HT)) {
+			ve--;
+		}
+		String name = headerName(colon);
+		request.addHeader(name, new String(line, vs, ve - vs, StandardCharsets.US_ASCII));
+	}
+
+	private String headerName(int len) {
+		for (int i = 0; i < KNOWN_HEADER_BYTES.length; i++) {
+			if (equalsIgnoreCase(KNOWN_HEADER_BYTES[i], 0, len)) {
+				return KNOWN_HEADERS[i];
+			}
+		}
+		return new String(line, 0, len, StandardCharsets.US_ASCII).toLowerCase();
+	}
+
+	// shared constant for known tokens, upper case for unknown ones
+	private String lookup(String[] known, int from, int to) {
+		for (String k : known) {
+			if (k.length() == to - from && equalsIgnoreCase(k, from)) {
+				return k;
+			}
+		}
+		return new String(line, from, to - from, StandardCharsets.US_ASCII).toUpperCase();
+	}
+
+	private boolean equalsIgnoreCase(String k, int from) {
+		for (int i = 0; i < k.length(); i++) {
+			if (toUpper(line[from + i]) != toUpper((byte) k.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// lower case constant against the start of the line
+	private boolean equalsIgnoreCase(byte[] lower, int from, int len) {
+		if (lower.length != len - from) {
+			return false;
+		}
+		for (int i = 0; i < lower.length; i++) {
+			byte b = line[from + i];
+			if (b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+			if (b != lower[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int indexOf(byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (line[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void fail(String message) {
+		state = ERROR;
+		error = message;
+		request = null;
+	}
+
+	private static byte toUpper(byte b) {
+		return b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+	}
+
+	private static byte[][] toBytes(String[] s) {
+		byte[][] b = new byte[s.length][];
+		for (int i = 0; i < s.length; i++) {
+			b[i] = s[i].getBytes(StandardCharsets.US_ASCII);
+		}
+		return b;
+	}
+}
@@ -0,0 +1,79 @@
+package utility;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+/**
+ * Measures the parse cost per request of HTTPRequestParser, whole and split
+ * across reads, against the Scanner-based parsing it replaced.
+ *
+ * Usage: java utility.HTTPRequestParserBenchmark [iterations]
+ */
+public class HTTPRequestParserBenchmark {
+	static final String REQUEST = "GET /doc178.html HTTP/1.1\r\n" + "Host: localhost\r\n"
+			+ "User-Agent: SHTTPTestClient\r\n" + "Accept: */*\r\n" + "Accept-Encoding: gzip, deflate\r\n"
+			+ "Connection: keep-alive\r\n" + "\r\n";
+
+	static long sink; // keeps results alive so the JIT cannot drop the work
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.valueOf(args[0]) : 2000000;
+		byte[] bytes = REQUEST.getBytes(StandardCharsets.US_ASCII);
+
+		for (int round = 0; round < 3; round++) { // first rounds are warm up
+			System.out.println("round " + round + ":");
+			report("parser, one read", iterations, parseWhole(bytes, iterations));
+			report("parser, 16 byte reads", iterations, parseSplit(bytes, 16, iterations));
+			report("Scanner over String", iterations / 10, parseScanner(bytes, iterations / 10));
+		}
+		System.out.println("(checksum " + sink + ")");
+	}
+
+	static long parseWhole(byte[] bytes, int n) {
+		HTTPRequestParser parser = new HTTPRequestParser();
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			buf.clear();
+			parser.reset();
+			sink += parser.parse(buf).getURL().length();
+		}
+		return System.nanoTime() - start;
+	}
+
+	static long parseSplit(byte[] bytes, int chunk, int n) {
+		HTTPRequestParser parser = new HTTPRequestParser();
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			parser.reset();
+			HTTPRequest request = null;
+			for (int pos = 0; request == null; pos += chunk) {
+				buf.limit(Math.min(pos + chunk, bytes.length)).position(pos);
+				request = parser.parse(buf);
+			}
+			sink += request.getURL().length();
+		}
+		return System.nanoTime() - start;
+	}
+
+	// what the servers used to do: bytes to String, then a Scanner
+	static long parseScanner(byte[] bytes, int n) {
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			Scanner scanner = new Scanner(new String(bytes, StandardCharsets.US_ASCII));
+			scanner.next();
+			String url = scanner.next();
+			scanner.next();
+			scanner.next();
+			sink += url.length() + scanner.next().length();
+			scanner.close();
+		}
+		return System.nanoTime() - start;
+	}
+
+	static void report(String name, int n, long nanos) {
+		System.out.printf("\t%-24s %8.1f ns/request%n", name, (double) nanos / n);
+	}
+}
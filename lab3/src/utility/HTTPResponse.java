@@ -1,91 +1,284 @@
 package utility;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.HashMap;
-import java.util.Locale;
-import java.util.TimeZone;
 
 public class HTTPResponse {
 	static final String protocol = "HTTP/1.0";
+	static final String protocol_11 = "HTTP/1.1";
 	static final String CRLF = "\r\n";
-	static final String content_type = "text/html"; // It is fixed for now
-	static final String [] field_labels = {"Date:", "Server:", "Content-Type:", "Content-Length:"};
+	static final String content_type = "text/html"; // of generated and CGI bodies, files carry their own
 	static final HashMap<Integer, String> m_message;
 	static String servername;
+	static final byte[] CONNECTION_KEEP_ALIVE = HeaderEncoder.ascii("Connection: keep-alive" + CRLF);
+	static final byte[] CONNECTION_CLOSE = HeaderEncoder.ascii("Connection: close" + CRLF);
 	static{
 		m_message = new HashMap<Integer, String>();
 		m_message.put(200, "OK");
+		m_message.put(206, "Partial Content");
+		m_message.put(304, "Not Modified");
+		m_message.put(400, "Bad Request");
 		m_message.put(404, "NOT FOUND");
 		m_message.put(405, "Method Not Allowed");
-		
+		m_message.put(416, "Range Not Satisfiable");
+		m_message.put(500, "Internal Server Error");
+		m_message.put(503, "Service Unavailable");
+		m_message.put(504, "Gateway Timeout");
+		HeaderEncoder.init(m_message);
 	}
 	private int statusCode;
-	/**
-	 * TODO
-	 *  Support media data
-	 *  Change file_content from string to byte[]
-	 **/
-	private byte[] file_content; 
-	private HashMap<String, String> m_fields = new HashMap<String, String>();
+	private String responseProtocol = protocol;
+	private byte[] file_content; // sent as raw bytes, never decoded
+	private File file; // body is sent straight from disk, see ResponseWriter
+	private InputStream stream; // body of unknown length, e.g. CGI output
+	private long content_length; // -1 for streamed bodies
+	private long body_offset; // where the body starts in file or file_content, for ranges
+	private byte[] entity_header; // pre-encoded Server/Content-Type/Content-Length, may be null
+	private byte[] connection; // pre-encoded Connection line, may be null
 	
 	public HTTPResponse(int code, byte[] file_content){
+		this(code, file_content, null, file_content == null ? 0 : file_content.length);
+	}
+	
+	// body is streamed from the file instead of being loaded into memory
+	public HTTPResponse(int code, File file, long length){
+		this(code, null, file, length);
+	}
+	
+	// length bytes of file from offset on, e.g. for a 206 answer
+	public HTTPResponse(int code, File file, long offset, long length){
+		this(code, null, file, length);
+		this.body_offset = offset;
+	}
+	
+	// length bytes of file_content from offset on
+	public HTTPResponse(int code, byte[] file_content, int offset, int length){
+		this(code, file_content, null, length);
+		this.body_offset = offset;
+	}
+	
+	/**
+	 * Body read from stream while it is sent, without a Content-Length:
+	 * chunked to HTTP/1.1 clients, delimited by closing the connection for
+	 * HTTP/1.0 ones.
+	 */
+	public HTTPResponse(int code, InputStream stream){
+		this(code, null, null, -1);
+		this.stream = stream;
+	}
+	
+	private HTTPResponse(int code, byte[] file_content, File file, long content_length){
 		this.statusCode = code;
 		
 		this.file_content = file_content;
+		this.file = file;
+		this.content_length = content_length;
 		if(HTTPResponse.servername == null){
 			// servername is not initialized
 			throw new NullPointerException("Servername is not set");
 		}
-		int content_length;
-		if(this.file_content == null){
-			content_length = 0;
-		}else{
-			content_length = this.file_content.length;		
-		}
-		
-		this.m_fields.put(HTTPResponse.field_labels[0], HTTPResponse.getServerTime()); // Date
-		this.m_fields.put(HTTPResponse.field_labels[1], HTTPResponse.servername); // Server
-		this.m_fields.put(HTTPResponse.field_labels[2], HTTPResponse.content_type); // content-type
-		this.m_fields.put(HTTPResponse.field_labels[3], String.valueOf(content_length));
 	}
 	
 	// for situation that the response does not contain any file content
 	public HTTPResponse(int code){
-		this(code, null);
+		this(code, (byte[]) null);
 	}
 	
 	public static void setServername(String name){
 		HTTPResponse.servername = name;
 	}
+	
+	/**
+	 * Answer in the version of the request and say whether the connection
+	 * stays open. An HTTP/1.1 client assumes keep-alive unless told "close",
+	 * an HTTP/1.0 client assumes close unless told "keep-alive".
+	 */
+	public void setConnection(String requestProtocol, boolean keepAlive){
+		this.responseProtocol = protocol_11.equals(requestProtocol) ? protocol_11 : protocol;
+		this.connection = keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE;
+	}
+	
+	/**
+	 * Server, Content-Type, Content-Length, Accept-Ranges, Last-Modified
+	 * and ETag lines of a file, plus Content-Encoding if encoding is not null
+	 * and Vary if the file has compressed variants.
+	 */
+	public static byte[] encodeEntityHeader(String contentType, long length, long lastModified, String etag, String encoding, boolean vary){
+		return HeaderEncoder.entityHeader(contentType, length, HeaderEncoder.concat(HeaderEncoder.ACCEPT_RANGES,
+				HeaderEncoder.validators(lastModified, etag, encoding, vary)));
+	}
+	
+	// header lines of a 206 answer with bytes first to last of a file of total bytes
+	public static byte[] encodePartialHeader(String contentType, long first, long last, long total, long lastModified, String etag, String encoding, boolean vary){
+		return HeaderEncoder.entityHeader(contentType, last - first + 1, HeaderEncoder.concat(
+				HeaderEncoder.contentRange(first, last, total), HeaderEncoder.validators(lastModified, etag, encoding, vary)));
+	}
+	
+	// header lines of a 416 answer, the range asked for is not in a file of total bytes
+	public static byte[] encodeUnsatisfiableHeader(long total){
+		return HeaderEncoder.entityHeader(content_type, 0, HeaderEncoder.contentRange(-1, -1, total));
+	}
+	
+	// header lines of a 304 answer for a file: Server and its validators
+	public static byte[] encodeNotModifiedHeader(long lastModified, String etag, boolean vary){
+		return HeaderEncoder.serverHeader(HeaderEncoder.validators(lastModified, etag, null, vary));
+	}
+	
+	// header lines from encodeEntityHeader or encodeNotModifiedHeader, e.g. kept by the file cache
+	public void setEntityHeader(byte[] entity_header){
+		this.entity_header = entity_header;
+	}
+	
+	// status line and header fields, terminated by an empty line
+	public String headerString(){
+		return new String(this.getHeaderBytes(), StandardCharsets.US_ASCII);
+	}
+	
+	// for debugging, the body is only described
 	@Override
 	public String toString(){
-		String s;
-		String message = HTTPResponse.m_message.get(this.statusCode);
-		s = HTTPResponse.protocol + " " + this.statusCode + " " + message + HTTPResponse.CRLF;
-		for(String label : field_labels){
-			s += label + " " + m_fields.get(label) + HTTPResponse.CRLF;
-		}
-		s += HTTPResponse.CRLF;
+		String s = this.headerString();
 		if(this.file_content != null){
-			s += new String(this.file_content, StandardCharsets.US_ASCII); // will here be a bug?
+			s += "<" + this.content_length + " bytes>";
+		}else if(this.file != null){
+			s += "<" + this.content_length + " bytes from " + this.file + ">";
+		}else if(this.stream != null){
+			s += "<streamed>";
 		}
-		//Debug.DEBUG(s);
 		return s;
 	}
 	
-	public byte[] getBytes(){
-		return this.toString().getBytes(StandardCharsets.US_ASCII);
+	public byte[] getHeaderBytes(){
+		byte[] status = HeaderEncoder.statusLine(this.responseProtocol, this.statusCode);
+		byte[] date = HeaderEncoder.dateLine();
+		int length = status.length + date.length + HeaderEncoder.CRLF.length;
+		if(this.stream != null){
+			length += HeaderEncoder.streamHeaderLength(content_type, this.isChunked());
+		}else if(this.entity_header != null){
+			length += this.entity_header.length;
+		}else{
+			length += HeaderEncoder.entityHeaderLength(content_type, this.content_length);
+		}
+		if(this.connection != null){
+			length += this.connection.length;
+		}
+		ByteBuffer out = ByteBuffer.allocate(length);
+		out.put(status).put(date);
+		if(this.stream != null){
+			HeaderEncoder.putStreamHeader(out, content_type, this.isChunked());
+		}else if(this.entity_header != null){
+			out.put(this.entity_header);
+		}else{
+			HeaderEncoder.putEntityHeader(out, content_type, this.content_length);
+		}
+		if(this.connection != null){
+			out.put(this.connection);
+		}
+		out.put(HeaderEncoder.CRLF);
+		return out.array();
+	}
+	
+	// in-memory body, null if there is none or it is sent from a file; starts at getBodyOffset()
+	public byte[] getBody(){
+		return this.file_content;
+	}
+	
+	// first byte of the body in getBody() or getFile(), 0 unless a range is sent
+	public long getBodyOffset(){
+		return this.body_offset;
+	}
+	
+	// file the body is sent from, null for in-memory bodies
+	public File getFile(){
+		return this.file;
+	}
+	
+	// body of unknown length, null unless built from a stream
+	public InputStream getStream(){
+		return this.stream;
+	}
+	
+	// streamed bodies go out in chunks to HTTP/1.1 clients
+	public boolean isChunked(){
+		return this.stream != null && protocol_11.equals(this.responseProtocol);
+	}
+	
+	/**
+	 * Read a streamed body into memory, for servers that must not block on
+	 * the stream while writing. Does nothing for other bodies.
+	 */
+	public void bufferStream() throws IOException{
+		if(this.stream == null){
+			return;
+		}
+		try{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] chunk = new byte[8192];
+			int n;
+			while((n = this.stream.read(chunk)) != -1){
+				out.write(chunk, 0, n);
+			}
+			this.file_content = out.toByteArray();
+			this.content_length = this.file_content.length;
+		}finally{
+			this.stream.close();
+			this.stream = null;
+		}
+	}
+	
+	/**
+	 * Drop the body and keep the header, Content-Length included, to answer
+	 * a HEAD request. A streamed body has no length yet: buffer it first.
+	 */
+	public void omitBody(){
+		if(this.stream != null){
+			throw new IllegalStateException("streamed body, call bufferStream() first");
+		}
+		this.file_content = null;
+		this.file = null;
+	}
+	
+	public int getStatusCode(){
+		return this.statusCode;
+	}
+	
+	public long getContentLength(){
+		return this.content_length;
 	}
 	
-	//http://stackoverflow.com/questions/7707555/getting-date-in-http-format-in-java
-	static String getServerTime() {
-	    Calendar calendar = Calendar.getInstance();
-	    SimpleDateFormat dateFormat = new SimpleDateFormat(
-	        "EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-	    dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-	    return dateFormat.format(calendar.getTime());
+	// body as a buffer; file bodies are memory mapped rather than copied
+	public ByteBuffer getBodyBuffer() throws IOException{
+		if(this.file != null){
+			FileInputStream in = new FileInputStream(this.file);
+			try{
+				return in.getChannel().map(FileChannel.MapMode.READ_ONLY, this.body_offset, this.content_length);
+			}finally{
+				in.close(); // the mapping stays valid after close
+			}
+		}
+		if(this.file_content != null){
+			return ByteBuffer.wrap(this.file_content, (int) this.body_offset, (int) this.content_length);
+		}
+		return ByteBuffer.allocate(0);
+	}
+	
+	// header and in-memory body as raw bytes; file bodies are not included
+	public byte[] getBytes(){
+		byte[] header = this.getHeaderBytes();
+		if(this.file_content == null){
+			return header;
+		}
+		byte[] bytes = new byte[header.length + (int) this.content_length];
+		System.arraycopy(header, 0, bytes, 0, header.length);
+		System.arraycopy(this.file_content, (int) this.body_offset, bytes, header.length, (int) this.content_length);
+		return bytes;
 	}
 }
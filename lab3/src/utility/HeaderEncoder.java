@@ -0,0 +1,186 @@
+package utility;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Writes response headers straight into a ByteBuffer. Status lines are
+ * encoded once per code, the Date line once per second, and the fields that
+ * only depend on the file (Server, Content-Type, Content-Length) can be
+ * encoded once and kept with the cached file.
+ */
+public class HeaderEncoder {
+	static final byte[] CRLF = { '\r', '\n' };
+	static final byte[] TRANSFER_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+	static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: bytes\r\n");
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	private static final HashMap<Integer, byte[]> status_10 = new HashMap<Integer, byte[]>();
+	private static final HashMap<Integer, byte[]> status_11 = new HashMap<Integer, byte[]>();
+
+	// Date line of the current second, replaced as a whole when it changes
+	private static volatile DateLine date = new DateLine(-1, null);
+
+	private static class DateLine {
+		final long second;
+		final byte[] bytes;
+
+		DateLine(long second, byte[] bytes) {
+			this.second = second;
+			this.bytes = bytes;
+		}
+	}
+
+	// fill the status line tables, called once the messages are known
+	static void init(HashMap<Integer, String> messages) {
+		for (Integer code : messages.keySet()) {
+			status_10.put(code, encodeStatus(HTTPResponse.protocol, code, messages.get(code)));
+			status_11.put(code, encodeStatus(HTTPResponse.protocol_11, code, messages.get(code)));
+		}
+	}
+
+	private static byte[] encodeStatus(String protocol, int code, String message) {
+		return ascii(protocol + " " + code + " " + message + "\r\n");
+	}
+
+	static byte[] statusLine(String protocol, int code) {
+		byte[] line = (HTTPResponse.protocol_11.equals(protocol) ? status_11 : status_10).get(code);
+		return line != null ? line : encodeStatus(protocol, code, "Unknown");
+	}
+
+	// date as HTTP headers write it, e.g. "Sat, 17 Oct 2026 12:30:42 GMT"
+	public static String httpDate(long epochSecond) {
+		return DATE_FORMAT.format(Instant.ofEpochSecond(epochSecond));
+	}
+
+	// "Date: ...\r\n" for now, formatted at most once a second
+	static byte[] dateLine() {
+		long second = System.currentTimeMillis() / 1000;
+		DateLine d = date;
+		if (d.second != second) {
+			// racing threads format the same value, either one may win
+			d = new DateLine(second, ascii("Date: " + httpDate(second) + "\r\n"));
+			date = d;
+		}
+		return d.bytes;
+	}
+
+	/**
+	 * Server, Content-Type and Content-Length lines of a body, followed by
+	 * extra lines such as the validators of a file. They do not change
+	 * between responses for the same file, so a cache entry keeps them.
+	 */
+	static byte[] entityHeader(String contentType, long length, byte[] extra) {
+		ByteBuffer out = ByteBuffer.allocate(entityHeaderLength(contentType, length) + extra.length);
+		putEntityHeader(out, contentType, length);
+		out.put(extra);
+		return out.array();
+	}
+
+	// "Server: ...\r\n" followed by extra lines, for responses without a body
+	static byte[] serverHeader(byte[] extra) {
+		ByteBuffer out = ByteBuffer.allocate("Server: ".length() + HTTPResponse.servername.length() + 2 + extra.length);
+		putAscii(out, "Server: ");
+		putAscii(out, HTTPResponse.servername);
+		out.put(CRLF);
+		out.put(extra);
+		return out.array();
+	}
+
+	/**
+	 * Last-Modified and ETag lines of a file, then Content-Encoding for a
+	 * compressed body and Vary if the file is sent in several encodings.
+	 */
+	static byte[] validators(long lastModified, String etag, String encoding, boolean vary) {
+		String s = "Last-Modified: " + httpDate(lastModified / 1000) + "\r\nETag: " + etag + "\r\n";
+		if (encoding != null) {
+			s += "Content-Encoding: " + encoding + "\r\n";
+		}
+		if (vary) {
+			s += "Vary: Accept-Encoding\r\n";
+		}
+		return ascii(s);
+	}
+
+	// "Content-Range: bytes first-last/total", or "*/total" if first is negative
+	static byte[] contentRange(long first, long last, long total) {
+		return ascii("Content-Range: bytes " + (first < 0 ? "*" : first + "-" + last) + "/" + total + "\r\n");
+	}
+
+	static byte[] concat(byte[] a, byte[] b) {
+		byte[] c = new byte[a.length + b.length];
+		System.arraycopy(a, 0, c, 0, a.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+		return c;
+	}
+
+	static int entityHeaderLength(String contentType, long length) {
+		return "Server: ".length() + HTTPResponse.servername.length() + 2 + "Content-Type: ".length()
+				+ contentType.length() + 2 + "Content-Length: ".length() + digits(length) + 2;
+	}
+
+	static void putEntityHeader(ByteBuffer out, String contentType, long length) {
+		putAscii(out, "Server: ");
+		putAscii(out, HTTPResponse.servername);
+		out.put(CRLF);
+		putAscii(out, "Content-Type: ");
+		putAscii(out, contentType);
+		out.put(CRLF);
+		putAscii(out, "Content-Length: ");
+		putDecimal(out, length);
+		out.put(CRLF);
+	}
+
+	// header lines of a body whose length is not known up front
+	static int streamHeaderLength(String contentType, boolean chunked) {
+		return "Server: ".length() + HTTPResponse.servername.length() + 2 + "Content-Type: ".length()
+				+ contentType.length() + 2 + (chunked ? TRANSFER_CHUNKED.length : 0);
+	}
+
+	static void putStreamHeader(ByteBuffer out, String contentType, boolean chunked) {
+		putAscii(out, "Server: ");
+		putAscii(out, HTTPResponse.servername);
+		out.put(CRLF);
+		putAscii(out, "Content-Type: ");
+		putAscii(out, contentType);
+		out.put(CRLF);
+		if (chunked) {
+			out.put(TRANSFER_CHUNKED);
+		}
+	}
+
+	static void putAscii(ByteBuffer out, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			out.put((byte) s.charAt(i));
+		}
+	}
+
+	static void putDecimal(ByteBuffer out, long value) {
+		int n = digits(value);
+		int end = out.position() + n;
+		for (int i = end - 1; i >= end - n; i--) {
+			out.put(i, (byte) ('0' + value % 10));
+			value /= 10;
+		}
+		out.position(end);
+	}
+
+	static int digits(long value) {
+		int n = 1;
+		while (value >= 10) {
+			value /= 10;
+			n++;
+		}
+		return n;
+	}
+
+	static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,140 @@
+package utility;
+
+import java.util.Arrays;
+
+/**
+ * Latency recorder in the style of HdrHistogram: values (microseconds) are
+ * counted in log-linear buckets, 64 linear sub-buckets per power of two, so
+ * any value is reported within 1/64 (about 1.6%) of what was recorded while
+ * the whole range up to an hour takes a fixed, small array.
+ *
+ * Not thread safe. Each sender thread records into its own histogram and
+ * they are merged with add() at the end of the run.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << SUB_BITS; // 64
+	private static final int LINEAR = 2 * SUB_COUNT; // values below 128 are exact
+	private static final long HIGHEST = 3600L * 1000 * 1000; // one hour in us
+
+	private final long[] counts = new long[index(HIGHEST) + 1];
+	private long count;
+	private long sum;
+	private long max;
+
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+		if (micros > HIGHEST) {
+			micros = HIGHEST;
+		}
+		counts[index(micros)]++;
+		count++;
+		sum += micros;
+		if (micros > max) {
+			max = micros;
+		}
+	}
+
+	/**
+	 * Record a value from a loop that sends a request every expectedInterval
+	 * microseconds. A response that took longer held back the requests that
+	 * should have gone out meanwhile; they are recorded with the latency they
+	 * would have seen, which is what HdrHistogram calls correcting for
+	 * coordinated omission.
+	 */
+	public void recordCorrected(long micros, long expectedInterval) {
+		record(micros);
+		if (expectedInterval <= 0) {
+			return;
+		}
+		for (long missed = micros - expectedInterval; missed >= expectedInterval; missed -= expectedInterval) {
+			record(missed);
+		}
+	}
+
+	// copy of this histogram corrected after the fact, see recordCorrected
+	public LatencyHistogram corrected(long expectedInterval) {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 0; i < counts.length; i++) {
+			long value = valueOf(i);
+			for (long n = 0; n < counts[i]; n++) {
+				h.recordCorrected(value, expectedInterval);
+			}
+		}
+		return h;
+	}
+
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		if (other.max > max) {
+			max = other.max;
+		}
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	public long count() {
+		return count;
+	}
+
+	public long max() {
+		return max;
+	}
+
+	public double mean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	// smallest recorded value that percent of the values do not exceed
+	public long percentile(double percent) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(valueOf(i), max);
+			}
+		}
+		return max;
+	}
+
+	// one line report, in milliseconds
+	public String summary() {
+		return String.format("p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f ms (%d samples)",
+				percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0,
+				percentile(99.9) / 1000.0, max / 1000.0, count);
+	}
+
+	// bucket of a value: exact below LINEAR, then SUB_COUNT buckets per power of two
+	private static int index(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // value >> shift in [64, 128)
+		return LINEAR + (shift - 1) * SUB_COUNT + (int) ((value >> shift) - SUB_COUNT);
+	}
+
+	// highest value that falls into bucket i
+	private static long valueOf(int i) {
+		if (i < LINEAR) {
+			return i;
+		}
+		int shift = (i - LINEAR) / SUB_COUNT + 1;
+		long sub = (i - LINEAR) % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+}
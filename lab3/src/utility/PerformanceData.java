@@ -5,6 +5,11 @@ public class PerformanceData{
 	public long num_bytes;
 	public long num_files;
 	public long response_time;
+	// in microseconds, merged from the sender threads
+	public final LatencyHistogram first_byte = new LatencyHistogram(); // request sent to first response byte
+	public final LatencyHistogram last_byte = new LatencyHistogram(); // request sent to end of response
+	// open-loop mode only: end of response measured from when the request was due
+	public final LatencyHistogram last_byte_intended = new LatencyHistogram();
 	
 	public PerformanceData(){}
 	
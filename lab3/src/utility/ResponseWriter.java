@@ -0,0 +1,162 @@
+package utility;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends one HTTPResponse. The header goes out of a small buffer and a file
+ * body is handed to FileChannel.transferTo, so the kernel moves it from the
+ * page cache to the socket without copying it through the Java heap.
+ *
+ * Works on blocking and non-blocking channels: writeTo returns false when
+ * the channel cannot take more bytes and should be called again once it is
+ * writable. A streamed body is read chunk by chunk while writing, which may
+ * block on the stream.
+ */
+public class ResponseWriter {
+	private final ByteBuffer[] buffers; // header and in-memory body
+	private final File file;
+	private FileChannel fileChannel;
+	private long position, end;
+	private InputStream stream; // streamed body, null once it ended
+	private final boolean chunked;
+	private ByteBuffer pending; // current piece of the streamed body, framed if chunked
+	private byte[] frame; // chunk size line, data and CRLF of the streamed body
+	private static final int CHUNK_SIZE = 8192;
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	public ResponseWriter(HTTPResponse response) {
+		ByteBuffer header = ByteBuffer.wrap(response.getHeaderBytes());
+		byte[] body = response.getBody();
+		if (body != null) {
+			this.buffers = new ByteBuffer[] { header,
+					ByteBuffer.wrap(body, (int) response.getBodyOffset(), (int) response.getContentLength()) };
+		} else {
+			this.buffers = new ByteBuffer[] { header };
+		}
+		this.file = response.getFile();
+		this.position = this.file == null ? 0 : response.getBodyOffset();
+		this.end = this.file == null ? 0 : position + response.getContentLength();
+		this.stream = response.getStream();
+		this.chunked = response.isChunked();
+	}
+
+	// write as much as the channel accepts, true once the whole response is out
+	public boolean writeTo(SocketChannel channel) throws IOException {
+		while (buffers[buffers.length - 1].hasRemaining()) {
+			if (channel.write(buffers) == 0) {
+				return false; // socket send buffer is full
+			}
+		}
+		if (position < end && fileChannel == null) {
+			fileChannel = new FileInputStream(file).getChannel();
+		}
+		while (position < end) {
+			long n = fileChannel.transferTo(position, end - position, channel);
+			if (n == 0) {
+				if (fileChannel.size() <= position) {
+					close();
+					throw new IOException("file truncated while sending: " + file);
+				}
+				return false;
+			}
+			position += n;
+		}
+		while (stream != null || (pending != null && pending.hasRemaining())) {
+			if ((pending == null || !pending.hasRemaining()) && !nextChunk()) {
+				break;
+			}
+			if (channel.write(pending) == 0) {
+				return false;
+			}
+		}
+		close();
+		return true;
+	}
+
+	// read the next piece of the streamed body into pending, false at its end
+	private boolean nextChunk() throws IOException {
+		if (stream == null) {
+			return false;
+		}
+		if (frame == null) {
+			frame = new byte[16 + CHUNK_SIZE + 2];
+		}
+		int n = stream.read(frame, 16, CHUNK_SIZE);
+		if (n == -1) {
+			stream.close();
+			stream = null;
+			if (!chunked) {
+				return false;
+			}
+			pending = ByteBuffer.wrap(LAST_CHUNK);
+			return true;
+		}
+		if (!chunked) {
+			pending = ByteBuffer.wrap(frame, 16, n);
+			return true;
+		}
+		// "<size in hex>\r\n<data>\r\n", the size line is put right before the data
+		byte[] size = (Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+		int start = 16 - size.length;
+		System.arraycopy(size, 0, frame, start, size.length);
+		frame[16 + n] = '\r';
+		frame[16 + n + 1] = '\n';
+		pending = ByteBuffer.wrap(frame, start, size.length + n + 2);
+		return true;
+	}
+
+	// fallback for sockets that have no channel, copies through a small buffer
+	public void writeTo(OutputStream out) throws IOException {
+		for (ByteBuffer b : buffers) {
+			out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+			b.position(b.limit());
+		}
+		if (file != null) {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				in.getChannel().position(position);
+				byte[] chunk = new byte[64 * 1024];
+				long left = end - position;
+				int n;
+				while (left > 0 && (n = in.read(chunk, 0, (int) Math.min(chunk.length, left))) != -1) {
+					out.write(chunk, 0, n);
+					left -= n;
+				}
+				position = end - left;
+			} finally {
+				in.close();
+			}
+		}
+		while (nextChunk()) {
+			out.write(pending.array(), pending.arrayOffset() + pending.position(), pending.remaining());
+			pending.position(pending.limit());
+		}
+		out.flush();
+	}
+
+	// release the file and the stream, safe to call more than once
+	public void close() {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+			}
+			stream = null;
+		}
+		if (fileChannel != null) {
+			try {
+				fileChannel.close();
+			} catch (IOException e) {
+			}
+			fileChannel = null;
+		}
+	}
+}